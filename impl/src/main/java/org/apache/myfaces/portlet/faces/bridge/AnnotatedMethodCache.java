@@ -0,0 +1,117 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.portlet.PortletContext;
+
+/**
+ * Caches, per class, the public methods carrying a given annotation so the bridge's
+ * lifecycle callbacks cost a lookup rather than a scan of every method of the class.
+ * <p>
+ * Lookups don't lock.  The cache holds the application's classes so the bridge clears it
+ * when it is destroyed.  Most classes have no annotated methods; those share an empty
+ * array.
+ */
+final class AnnotatedMethodCache
+{
+  private static final Method[] NO_METHODS = new Method[0];
+
+  private final Class<? extends Annotation> mAnnotation;
+  private final ConcurrentHashMap<Class<?>, Method[]> mMethods =
+    new ConcurrentHashMap<Class<?>, Method[]>();
+
+  public AnnotatedMethodCache(Class<? extends Annotation> annotation)
+  {
+    mAnnotation = annotation;
+  }
+
+  /**
+   * @return the public methods of the class carrying the annotation
+   */
+  public Method[] getMethods(Class<?> c)
+  {
+    Method[] methods = mMethods.get(c);
+    if (methods == null)
+    {
+      // at worst two threads scan the same class
+      methods = findMethods(c);
+      mMethods.put(c, methods);
+    }
+    return methods;
+  }
+
+  /**
+   * Invokes the annotated methods of an object, logging and otherwise ignoring any that
+   * fail.
+   *
+   * @param context
+   *          where failures are logged; may be <code>null</code> once the bridge is destroyed
+   */
+  public void invoke(Object o, PortletContext context)
+  {
+    Method[] methods = getMethods(o.getClass());
+    for (int i = 0; i < methods.length; i++)
+    {
+      try
+      {
+        methods[i].invoke(o, (Object[]) null);
+      }
+      catch (Exception e)
+      {
+        // log and forge ahead with the remaining methods
+        if (context != null)
+        {
+          context.log("Unable to invoke @" + mAnnotation.getSimpleName() + " method " +
+                      methods[i], e);
+        }
+      }
+    }
+  }
+
+  public void clear()
+  {
+    mMethods.clear();
+  }
+
+  private Method[] findMethods(Class<?> c)
+  {
+    List<Method> annotated = null;
+    Method[] methods = c.getMethods();
+    for (int i = 0; i < methods.length; i++)
+    {
+      if (methods[i].isAnnotationPresent(mAnnotation))
+      {
+        if (annotated == null)
+        {
+          annotated = new ArrayList<Method>(2);
+        }
+        annotated.add(methods[i]);
+      }
+    }
+    return annotated == null ? NO_METHODS : annotated.toArray(new Method[annotated.size()]);
+  }
+}
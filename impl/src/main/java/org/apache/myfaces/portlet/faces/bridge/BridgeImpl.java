@@ -20,19 +20,16 @@
 package org.apache.myfaces.portlet.faces.bridge;
 
 import java.io.IOException;
-import java.io.Serializable;
 
-import java.lang.reflect.Method;
 
 import java.net.URL;
 
-import java.rmi.server.UID;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -60,12 +57,9 @@ import javax.faces.render.ResponseStateManager;
 import javax.faces.webapp.FacesServlet;
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
-import javax.portlet.PortalContext;
 import javax.portlet.PortletConfig;
 import javax.portlet.PortletContext;
-import javax.portlet.PortletPreferences;
 import javax.portlet.PortletRequest;
-import javax.portlet.PortletResponse;
 import javax.portlet.PortletSession;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
@@ -73,21 +67,23 @@ import javax.portlet.faces.Bridge;
 import javax.portlet.faces.BridgeException;
 import javax.portlet.faces.annotation.BridgePreDestroy;
 import javax.portlet.faces.annotation.BridgeRequestScopeAttributeAdded;
-import javax.portlet.faces.annotation.ExcludeFromManagedRequestScope;
 
-import javax.servlet.ServletConfig;
-import javax.servlet.ServletContext;
-import javax.servlet.ServletRequest;
 import javax.servlet.ServletRequestAttributeEvent;
 import javax.servlet.ServletRequestAttributeListener;
-import javax.servlet.ServletResponse;
-import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
+import org.apache.myfaces.portlet.faces.bridge.scope.BridgeRequestScopeStore;
+import org.apache.myfaces.portlet.faces.bridge.scope.BridgeRequestScopeStoreFactory;
+import org.apache.myfaces.portlet.faces.bridge.scope.FacesMessageState;
+import org.apache.myfaces.portlet.faces.bridge.scope.RequestScopeStoreMonitor;
+import org.apache.myfaces.portlet.faces.bridge.scope.ScopeKey;
+import org.apache.myfaces.portlet.faces.bridge.scope.SessionBoundRequestScopeStore;
 import org.apache.myfaces.portlet.faces.bridge.wrapper.BridgeRenderRequestWrapper;
+import org.apache.myfaces.portlet.faces.bridge.wrapper.RequestScopeOverlayWrapper;
 import org.apache.myfaces.portlet.faces.context.PortletExternalContextImpl;
 import org.apache.myfaces.portlet.faces.util.config.FacesConfigurationProcessor;
+import org.apache.myfaces.portlet.faces.util.config.FacesServletMappings;
 import org.apache.myfaces.portlet.faces.util.config.WebConfigurationProcessor;
 
 public class BridgeImpl
@@ -98,23 +94,58 @@ public class BridgeImpl
 	// public so PortletStateManager can see/use
   public static final String UPDATED_VIEW_STATE_PARAM = "org.apache.myfaces.portlet.faces.updatedViewStateParam";
 
-  private static final String REQUEST_SCOPE_LOCK = "org.apache.myfaces.portlet.faces.requestScopeLock";
-  private static final String REQUEST_SCOPE_MAP = "org.apache.myfaces.portlet.faces.requestScopeMap";
   private static final String REQUEST_SCOPE_LISTENER = "org.apache.myfaces.portlet.faces.requestScopeWatch";
   private static final String FACES_VIEWROOT = "org.apache.myfaces.portlet.faces.facesViewRoot";
   private static final String FACES_MESSAGES = "org.apache.myfaces.portlet.faces.facesMessages";
   private static final String REQUEST_PARAMETERS = "org.apache.myfaces.portlet.faces.requestParameters";
   private static final String PREEXISTING_ATTRIBUTE_NAMES = "org.apache.myfaces.portlet.faces.preExistingAttributeNames";
   private static final String REQUEST_SCOPE_ID_RENDER_PARAM = "_bridgeRequestScopeId";
-  private static final int DEFAULT_MAX_MANAGED_REQUEST_SCOPES = 100;
-
+  private static final String CAPTURED_ATTRIBUTE_NAMES = "org.apache.myfaces.portlet.faces.capturedAttributeNames";
+  private static final String CAPTURE_PROBE = "org.apache.myfaces.portlet.faces.captureProbe";
+  private static final String FACES_SERVLET_MAPPINGS = "org.apache.myfaces.portlet.faces.facesServletMappings";
+
+  // Portlet or context init parameter: when "true" the bridge request scope is
+  // built from the attributes the ServletRequestAttributeListener saw added
+  // during the action rather than by copying (and filtering) every request
+  // attribute.  Requires the bridge to be registered as a listener and the
+  // portlet container to fire servlet request attribute events for portlet
+  // requests -- otherwise the bridge falls back to copying.
+  public static final String CAPTURE_REQUEST_SCOPE_ATTRIBUTES = "org.apache.myfaces.portlet.faces.CAPTURE_REQUEST_SCOPE_ATTRIBUTES";
+
+  // Portlet or context init parameter: how the Faces view is kept in the bridge
+  // request scope between the action and the first render.  "tree" (the
+  // default) keeps the component tree itself, "state" keeps its saved state
+  // and "compressed" keeps its saved state serialized and compressed.  The
+  // latter two rebuild the tree in the first render.
+  public static final String REQUEST_SCOPE_VIEW_MODE = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_VIEW_MODE";
+
+  // Portlet init parameter: when "true" the portlet only ever renders (it has no
+  // actions) so the bridge skips the managed request scope machinery altogether:
+  // renders neither look up nor restore a scope (or action parameters) and the
+  // portlet doesn't use the application's scope store.  Actions are rejected.
+  public static final String RENDER_ONLY = "org.apache.myfaces.portlet.faces.RENDER_ONLY";
+
+  private boolean mRenderOnly = false;
   private Boolean mPreserveActionParams = false;
+  private boolean mCaptureAttributes = false;
+  private boolean mSaveViewState = false;
+  private boolean mCompressViewState = false;
   private List<String> mExcludedRequestAttributes = null;
+  private ExcludedAttributeMatcher mExcludedAttributeMatcher = null;
 
   private PortletConfig mPortletConfig = null;
   private FacesContextFactory mFacesContextFactory = null;
   private Lifecycle mLifecycle = null;
-  private List<String> mFacesMappings = null;
+  private FacesServletMappings mFacesMappings = null;
+  private BridgeRequestScopeStore mRequestScopeStore = null;
+  private RequestScopeStoreMonitor mRequestScopeMonitor = null;
+  private ScopeTracer mScopeTracer = null;
+
+  // the annotated callbacks of the classes stored in the managed request scope
+  private final AnnotatedMethodCache mAttributeAddedMethods =
+    new AnnotatedMethodCache(BridgeRequestScopeAttributeAdded.class);
+  private final AnnotatedMethodCache mPreDestroyMethods =
+    new AnnotatedMethodCache(BridgePreDestroy.class);
 
 
   public BridgeImpl()
@@ -150,24 +181,54 @@ public class BridgeImpl
     // Read excludedAttributes that may be defined in any face-config.xml
     readExcludedAttributesFromFacesConfig(portletContext, mExcludedRequestAttributes);
 
-    // Set up the synchronziation object for the RequestScopeMap as we don't
-    // want to sync on the PortletContext because its too broad. Note:
-    // needed
-    // because we not only need to sync the Map but also creating the Map
-    // and
-    // putting it in the PortletContext. Hence the sync object allows us
-    // to limit syncronizing the PortletContext to once per portlet (init
-    // time);
-    
-    // TODO: What about synching on a static object or using a class lock?
-    //       Perhaps even the LRUMap itself if said map is a singleton?
-    synchronized (portletContext)
+    // Compile the exclusions (along with the predefined ones) as they're
+    // checked for every request attribute of every action
+    mExcludedAttributeMatcher = new ExcludedAttributeMatcher(mExcludedRequestAttributes,
+                                                             PREEXISTING_ATTRIBUTE_NAMES,
+                                                             CAPTURED_ATTRIBUTE_NAMES);
+
+    String capture = mPortletConfig.getInitParameter(CAPTURE_REQUEST_SCOPE_ATTRIBUTES);
+    if (capture == null)
     {
-      Object lock = portletContext.getAttribute(REQUEST_SCOPE_LOCK);
-      if (lock == null)
+      capture = portletContext.getInitParameter(CAPTURE_REQUEST_SCOPE_ATTRIBUTES);
+    }
+    mCaptureAttributes = Boolean.valueOf(capture).booleanValue();
+
+    String viewMode = mPortletConfig.getInitParameter(REQUEST_SCOPE_VIEW_MODE);
+    if (viewMode == null)
+    {
+      viewMode = portletContext.getInitParameter(REQUEST_SCOPE_VIEW_MODE);
+    }
+    if (viewMode != null)
+    {
+      viewMode = viewMode.trim();
+      if (viewMode.equalsIgnoreCase("state"))
       {
-        portletContext.setAttribute(REQUEST_SCOPE_LOCK, new Object());
+        mSaveViewState = true;
       }
+      else if (viewMode.equalsIgnoreCase("compressed"))
+      {
+        mSaveViewState = true;
+        mCompressViewState = true;
+      }
+      else if (!viewMode.equalsIgnoreCase("tree"))
+      {
+        throw new BridgeException("Invalid value for init parameter " + REQUEST_SCOPE_VIEW_MODE +
+                                  ": " + viewMode);
+      }
+    }
+
+    mScopeTracer = ScopeTracer.getInstance(portletContext);
+
+    mRenderOnly = Boolean.valueOf(mPortletConfig.getInitParameter(RENDER_ONLY)).booleanValue();
+    if (mRenderOnly)
+    {
+      portletContext.log("Portlet " + mPortletConfig.getPortletName() +
+                         " is render only: managed request scopes are disabled");
+    }
+    else
+    {
+      acquireRequestScopeStore(portletContext);
     }
 
     // Add self as ELContextListener to the Faces App so we can add the
@@ -179,21 +240,67 @@ public class BridgeImpl
 
     // Process and cache the FacesServlet mappings for use by
     // ExternalContext
-    WebConfigurationProcessor webConfig = new WebConfigurationProcessor(portletContext);
-    mFacesMappings = webConfig.getFacesMappings();
-    if (mFacesMappings == null || mFacesMappings.size() == 0)
-    {
-      throw new BridgeException("BridgeImpl.init(): unable to determine Faces servlet web.xml mapping.");
-    }
-    for (int i = 0; i < mFacesMappings.size(); i++)
+    mFacesMappings = getFacesServletMappings(portletContext);
+  }
+
+  /*
+   * The FacesServlet mappings are compiled once per application (by the first
+   * of its portlets to initialize) and then shared.
+   */
+  private FacesServletMappings getFacesServletMappings(PortletContext portletContext)
+    throws BridgeException
+  {
+    synchronized (portletContext)
     {
-      portletContext.log("Mapping: " + mFacesMappings.get(i));
+      FacesServletMappings mappings =
+        (FacesServletMappings) portletContext.getAttribute(FACES_SERVLET_MAPPINGS);
+      if (mappings != null)
+      {
+        return mappings;
+      }
+
+      WebConfigurationProcessor webConfig = new WebConfigurationProcessor(portletContext);
+      List<String> patterns = webConfig.getFacesMappings();
+      if (patterns == null || patterns.size() == 0)
+      {
+        throw new BridgeException("BridgeImpl.init(): unable to determine Faces servlet web.xml mapping.");
+      }
+      for (int i = 0; i < patterns.size(); i++)
+      {
+        portletContext.log("Mapping: " + patterns.get(i));
+      }
+
+      mappings = new FacesServletMappings(patterns);
+      portletContext.setAttribute(FACES_SERVLET_MAPPINGS, mappings);
+      return mappings;
     }
   }
 
+  private void acquireRequestScopeStore(PortletContext portletContext)
+  {
+    // Acquire the store holding the managed request scopes.  Its shared by
+    // all the bridge's portlets in this application (that use the same store
+    // class) and is acquired here rather than lazily so we only ever need to
+    // sync on the PortletContext once per portlet (init time).  The store
+    // does its own locking so no further synchronization is needed when
+    // accessing it.
+    mRequestScopeStore = 
+      BridgeRequestScopeStoreFactory.acquireStore(mPortletConfig, 
+                                                  new ScopeRemovalListener(mScopeTracer));
+    mRequestScopeMonitor = 
+      BridgeRequestScopeStoreFactory.getMonitor(portletContext, mRequestScopeStore);
+  }
+
   public void doFacesRequest(ActionRequest request, ActionResponse response)
     throws BridgeException
   {
+    if (mRenderOnly)
+    {
+      throw new BridgeException("BridgeImpl.doFacesRequest(): portlet " +
+                                mPortletConfig.getPortletName() +
+                                " is render only and can't process actions");
+    }
+
     // Set the Portlet lifecycle phase as a request attribute so its
     // available to Faces extensions -- allowing that code to NOT rely on
     // instanceof which can fail if a portlet container uses a single class
@@ -213,15 +320,26 @@ public class BridgeImpl
     // acquiring the FacesContext because its possible (though unlikely)
     // the application has inserted itself in this process and sets up
     // needed request attributes.
-    List<String> preExistingAttributes = getRequestAttributes(request);
-    // place on the request for use here and in the servletRequestAttributeListener
-    if (preExistingAttributes != null)
+    // Unless instead the attributes added from here on can be captured as
+    // they are added.
+    Set<String> preExistingAttributes = null;
+    Set<String> capturedAttributes = null;
+    if (mCaptureAttributes)
     {
-      request.setAttribute(PREEXISTING_ATTRIBUTE_NAMES, preExistingAttributes);
+      capturedAttributes = startAttributeCapture(request);
+    }
+    if (capturedAttributes == null)
+    {
+      preExistingAttributes = getRequestAttributes(request);
+      // place on the request for use here and in the servletRequestAttributeListener
+      if (preExistingAttributes != null)
+      {
+        request.setAttribute(PREEXISTING_ATTRIBUTE_NAMES, preExistingAttributes);
+      }
     }
 
     FacesContext context = null;
-    String scopeId = null;
+    ScopeKey scopeKey = null;
     try
     {
       // Get the FacesContext instance for this request
@@ -231,7 +349,7 @@ public class BridgeImpl
       // Each action starts a new "action lifecycle"
       // The Bridge preserves request scoped data and if so configured
       // Action Parameters for the duration of an action lifecycle
-      scopeId = initBridgeRequestScope(request, response);
+      scopeKey = initBridgeRequestScope(request, response);
 
       // For actions we only execute the lifecycle phase
       getLifecycle().execute(context);
@@ -264,7 +382,8 @@ public class BridgeImpl
         // within the same request scope but Faces does (assumes this),
         // preserve the request scope data and the Faces view tree at
         // RequestScope.
-        saveBridgeRequestScopeData(context, scopeId, preExistingAttributes);
+        saveBridgeRequestScopeData(context, scopeKey, preExistingAttributes,
+                                   capturedAttributes);
 
         // Finalize the action response -- key here is the reliance on
         // ExternalContext.encodeActionURL to migrate info encoded
@@ -292,7 +411,7 @@ public class BridgeImpl
     }
     finally
     {
-      dumpScopeId(scopeId, "ACTION_PHASE");
+      dumpScopeId(scopeKey, "ACTION_PHASE");
       // our servletrequestattributelistener uses this as an indicator of whether 
       // its actively working on a request -- remove it to indicate we are done
       request.removeAttribute(Bridge.PORTLET_LIFECYCLE_PHASE);
@@ -303,46 +422,35 @@ public class BridgeImpl
     }
   }
   
-  private void dumpScopeId(String scopeId, String phase)
+  private void dumpScopeId(ScopeKey scopeKey, String phase)
   {
-    // Get the data from the scope
-    PortletContext ctx = mPortletConfig.getPortletContext();
-    ctx.log("dumpScopeId: " + phase);
-    synchronized (ctx.getAttribute(REQUEST_SCOPE_LOCK))
-    {
-      // get the managedScopeMap
-      LRUMap requestScopeMap = (LRUMap) ctx.getAttribute(REQUEST_SCOPE_MAP);
-      // No scope for all renders before first action to this portletApp
-      if (requestScopeMap == null)
-      {
-        ctx.log("There are No saved scoped.  Can't match: "+ scopeId);
-        return;
-      }
+    if (scopeKey == null || !mScopeTracer.isEnabled())
+    {
+      return;
+    }
 
-      Map<String, Object> m = requestScopeMap.get(scopeId);
-      if (m == null)
-      {
-        ctx.log("Can't match scope: "+ scopeId);
-        return;
-      }
-      
-      Set<Map.Entry<String,Object>> set = m.entrySet();
-      Iterator<Map.Entry<String,Object>> i = set.iterator();
-      ctx.log("Elements in scope: " + scopeId);
-      while (i.hasNext())
-      {
-        Map.Entry<String,Object> entry = i.next();
-        ctx.log("     " + entry.getKey());
-      }
-      ctx.log("end dumpScopeId");
+    // Only look the scope up to list its attributes -- a lookup counts as a use
+    // and so would change the very eviction order an EVENTS trace records
+    if (mScopeTracer.isDumping())
+    {
+      mScopeTracer.trace(phase, scopeKey, mRequestScopeStore.get(scopeKey));
+    }
+    else
+    {
+      mScopeTracer.trace(phase, scopeKey);
     }
-       
   }
 
   public void doFacesRequest(RenderRequest request, RenderResponse response)
     throws BridgeException
   {
-    String scopeId = null;
+    if (mRenderOnly)
+    {
+      doRenderOnlyRequest(request, response);
+      return;
+    }
+
+    ScopeKey scopeKey = null;
     
     // Set the Portlet lifecycle phase as a request attribute so its
     // available to Faces extensions -- allowing that code to NOT rely on
@@ -370,9 +478,9 @@ public class BridgeImpl
       // extension
       RenderRequest extRequest = (RenderRequest) extCtx.getRequest();
 
-      scopeId = extRequest.getParameter(REQUEST_SCOPE_ID_RENDER_PARAM);
+      scopeKey = getBridgeRequestScopeKey(extRequest);
 
-      if (restoreBridgeRequestScopeData(context, scopeId))
+      if (restoreBridgeRequestScopeData(context, scopeKey))
       {
         // Because the Bridge is required to always save/restore the
         // VIEW_STATE
@@ -382,7 +490,7 @@ public class BridgeImpl
         // only restores if first render after action
         // afterwards not restored from Bridge request scope
         // rather its saved/restored by Faces.
-        restoreFacesView(context, scopeId);
+        restoreFacesView(context, scopeKey);
       }
 
       // Ensure the ContentType is set before rendering
@@ -421,9 +529,9 @@ public class BridgeImpl
         {
           // When exception occurs remove stored scope so don't
           // get stuck replaying the error when/if user refreshes
-          if (scopeId != null)
+          if (scopeKey != null)
           {
-            removeRequestScopes(scopeId);
+            removeRequestScope(scopeKey);
           }
         }
         finally
@@ -436,9 +544,9 @@ public class BridgeImpl
       // When we have navigated to this view between the action and render
       // the initial VIEW_STATE_PARAM reflects the actions view -- update
       // here to the one from this render so refresh will work.
-      if (scopeId != null)
+      if (scopeKey != null)
       {
-        updateViewStateParam(context, scopeId);
+        updateViewStateParam(context, scopeKey);
       }
 
     }
@@ -446,9 +554,9 @@ public class BridgeImpl
     {
       // When exception occurs remove stored scope so don't
       // get stuck replaying the error when/if user refreshes
-      if (scopeId != null)
+      if (scopeKey != null)
       {
-        removeRequestScopes(scopeId);
+        removeRequestScope(scopeKey);
       }
       
       context.getExternalContext().log("Exception thrown in doFacesRequest:render", e);
@@ -464,7 +572,7 @@ public class BridgeImpl
     }
     finally
     {
-      dumpScopeId(scopeId, "RENDER_PHASE");
+      dumpScopeId(scopeKey, "RENDER_PHASE");
       // our servletrequestattributelistener uses this as an indicator of whether 
       // its actively working on a request -- remove it to indicate we are done
       request.removeAttribute(Bridge.PORTLET_LIFECYCLE_PHASE);
@@ -475,13 +583,88 @@ public class BridgeImpl
     }
   }
 
+  /*
+   * Renders a render only portlet: there's never a managed request scope to restore so
+   * this merely restores (or creates) the view and renders it.
+   */
+  private void doRenderOnlyRequest(RenderRequest request, RenderResponse response)
+    throws BridgeException
+  {
+    // still needed by the FacesContextFactory and ExternalContext
+    request.setAttribute(Bridge.PORTLET_LIFECYCLE_PHASE, Bridge.PortletPhase.RENDER_PHASE);
+    if (mFacesMappings != null)
+    {
+      request.setAttribute(PortletExternalContextImpl.FACES_MAPPING_ATTRIBUTE, mFacesMappings);
+    }
+
+    FacesContext context = null;
+    try
+    {
+      Lifecycle lifecycle = getLifecycle();
+      context = 
+          getFacesContextFactory().getFacesContext(mPortletConfig, request, response, lifecycle);
+      ExternalContext extCtx = context.getExternalContext();
+
+      if (extCtx.getResponseContentType() == null)
+      {
+        response.setContentType(((RenderRequest) extCtx.getRequest()).getResponseContentType());
+      }
+
+      // add self as PhaseListener to stop after the view is restored
+      lifecycle.addPhaseListener(this);
+      try
+      {
+        lifecycle.execute(context);
+      }
+      finally
+      {
+        lifecycle.removePhaseListener(this);
+      }
+      lifecycle.render(context);
+    }
+    catch (Exception e)
+    {
+      if (context != null)
+      {
+        context.getExternalContext().log("Exception thrown in doFacesRequest:render", e);
+      }
+      if (!(e instanceof BridgeException))
+      {
+        Throwable rootCause = e.getCause();
+        throw new BridgeException(e.getMessage(), rootCause);
+      }
+      else
+      {
+        throw (BridgeException) e;
+      }
+    }
+    finally
+    {
+      request.removeAttribute(Bridge.PORTLET_LIFECYCLE_PHASE);
+      if (context != null)
+      {
+        context.release();
+      }
+    }
+  }
+
   public void destroy()
   {
-    // remove any scopes being managed for this portlet
-    // Each scope has a per portlet prefix -- pass in the prefix
-    // constructed by adding the prefix to an empty string.
-    removeRequestScopes(qualifyScopeId(mPortletConfig.getPortletName(), null, null));
+    if (mRequestScopeStore != null)
+    {
+      // remove any scopes being managed for this portlet
+      removeRequestScopes(mRequestScopeStore, mPortletConfig.getPortletName(), null);
+      BridgeRequestScopeStoreFactory.releaseStore(mPortletConfig.getPortletContext(),
+                                                  mRequestScopeStore);
+    }
+
+    mRequestScopeStore = null;
+    mRequestScopeMonitor = null;
 
+    // don't hold onto the application's classes
+    mAttributeAddedMethods.clear();
+    mPreDestroyMethods.clear();
+    mExcludedAttributeMatcher.clear();
     mPortletConfig = null;
   }
 
@@ -509,6 +692,17 @@ public class BridgeImpl
     // we are actively working on a request
     PortletPhase phase = (PortletPhase) srae.getServletRequest().getAttribute(Bridge.PORTLET_LIFECYCLE_PHASE);
     
+    // record the attribute if the bridge is capturing this action's attributes
+    if (phase == PortletPhase.ACTION_PHASE)
+    {
+      Set<String> captured = 
+        (Set<String>) srae.getServletRequest().getAttribute(CAPTURED_ATTRIBUTE_NAMES);
+      if (captured != null && !srae.getName().equals(CAPTURED_ATTRIBUTE_NAMES))
+      {
+        captured.add(srae.getName());
+      }
+    }
+
     // do nothing if before/after bridge processing or in the render phase.
     // Don't care about render phase because we don't update/change the managed
     // scope based on changes during render.
@@ -516,7 +710,7 @@ public class BridgeImpl
     if (phase == null || phase == PortletPhase.RENDER_PHASE ||
         isExcludedFromBridgeRequestScope(srae.getName(),
                                                srae.getValue(),
-                                               (List<String>)
+                                               (Set<String>)
                                                   srae.getServletRequest().getAttribute(PREEXISTING_ATTRIBUTE_NAMES)))
     {
       return;
@@ -524,24 +718,7 @@ public class BridgeImpl
     
     // Otherwise -- see if the added attribute implements the bridge's 
     // BridgeRequestScopeAdded annotation -- call each method so annotated
-    Object o = srae.getValue();
-    Method[] methods = o.getClass().getMethods();
-    for (int i = 0; i < methods.length; i++)
-    {
-      if (methods[i].isAnnotationPresent(BridgeRequestScopeAttributeAdded.class))
-      {
-        try
-        {
-          methods[i].invoke(o, null);
-        }
-        catch (Exception e)
-        {
-            // TODO: log problem
-            // do nothing and forge ahead
-            ;
-        }
-      }
-    }
+    mAttributeAddedMethods.invoke(srae.getValue(), getPortletContext());
   }
   
   public void attributeRemoved(ServletRequestAttributeEvent srae)
@@ -556,6 +733,12 @@ public class BridgeImpl
     // To make up for this we call its BridgePredestroy
     if (phase != null && phase == PortletPhase.ACTION_PHASE)
     {
+      Set<String> captured = 
+        (Set<String>) srae.getServletRequest().getAttribute(CAPTURED_ATTRIBUTE_NAMES);
+      if (captured != null)
+      {
+        captured.remove(srae.getName());
+      }
       notifyPreDestroy(srae.getValue()); // in outerclass (BridgeImpl)
     }
   }
@@ -628,22 +811,42 @@ public class BridgeImpl
     // first save any current Faces messages in the viewRoot
     saveFacesMessageState(context);
 
-    // now place the viewRoot in the request scope
+    // now place the viewRoot (or if so configured its saved state) in the
+    // request scope
     Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
-    requestMap.put(FACES_VIEWROOT, context.getViewRoot());
+    UIViewRoot viewRoot = context.getViewRoot();
+    if (mSaveViewState && viewRoot != null)
+    {
+      try
+      {
+        requestMap.put(FACES_VIEWROOT, SavedView.save(context, viewRoot, mCompressViewState));
+        return;
+      }
+      catch (IOException e)
+      {
+        // not serializable -- keep the tree itself
+        context.getExternalContext().log("Unable to compress the state of view " + 
+                                         viewRoot.getViewId() + " -- keeping the view itself",
+                                         e);
+      }
+    }
+    requestMap.put(FACES_VIEWROOT, viewRoot);
   }
 
-  private void restoreFacesView(FacesContext context, String scopeId)
+  private void restoreFacesView(FacesContext context, ScopeKey scopeKey)
   {
     Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
-    UIViewRoot viewRoot = (UIViewRoot) requestMap.get(FACES_VIEWROOT);
-    if (viewRoot != null)
+    Object view = requestMap.get(FACES_VIEWROOT);
+    if (view != null)
     {
+      // rebuild the tree if only its state was kept
+      UIViewRoot viewRoot = (view instanceof SavedView) ?
+        ((SavedView) view).restore(context) : (UIViewRoot) view;
       context.setViewRoot(viewRoot);
       // remove from current Request Scope and the saved Bridge Request
       // Scope
       requestMap.remove(FACES_VIEWROOT);
-      removeFromBridgeRequestScopeData(context, scopeId, FACES_VIEWROOT);
+      removeFromBridgeRequestScopeData(context, scopeKey, FACES_VIEWROOT);
     }
     restoreFacesMessageState(context);
     // Don't remove the messages as Faces doesn't save these during render
@@ -676,7 +879,7 @@ public class BridgeImpl
     }
   }
   
-  private void updateViewStateParam(FacesContext context, String scopeId)
+  private void updateViewStateParam(FacesContext context, ScopeKey scopeKey)
   {
     
     // First make sure we have a value to update
@@ -687,64 +890,29 @@ public class BridgeImpl
         return;
     
     // Otherwise we need to update/store this value in the scope
-    PortletContext portletContext = mPortletConfig.getPortletContext();
-
-    // Get the request scope lock -- because its added during init it should
-    // always be there.
-    synchronized (portletContext.getAttribute(REQUEST_SCOPE_LOCK))
-    {
-      // get the managedScopeMap
-      LRUMap requestScopeMap = (LRUMap) portletContext.getAttribute(REQUEST_SCOPE_MAP);
-
-      if (requestScopeMap == null)
-      {
-        // Have only done renders to this point -- so no scope to update
-        return;
-      }
-      
-      // now see if this scope is in the Map
-      Map<String, Object> scopeMap = requestScopeMap.get(scopeId);
-      if (scopeMap == null)
-      {
-        // Scope has been previously removed -- so no scope to update
-        return;
-      }
-
-      // Prepare the value for storing as a preserved parameter
-      // Store as an array of Strings with just one entry as per
-      // portlet request
-      String[] values = new String[1];
-      values[0] = updatedViewStateParam;
-
-      // Now get the RequestParameters from the scope
-      @SuppressWarnings("unchecked")
-      Map<String, String[]> requestParams = (Map<String, String[]>)scopeMap.get(REQUEST_PARAMETERS);
-      
-      if (requestParams == null) 
-      {
-        requestParams = new HashMap<String, String[]>(1);
-        scopeMap.put(REQUEST_PARAMETERS, requestParams);
-      }
-      // finally update the value in the Map
-      requestParams.put(ResponseStateManager.VIEW_STATE_PARAM, values);
-    }
-  }
-  
-  
-  private LRUMap createRequestScopeMap(PortletContext portletContext) 
-  {
-    // see if portlet has defined how many requestScopes to manage
-    // for this portlet
-    int managedScopes = DEFAULT_MAX_MANAGED_REQUEST_SCOPES;
-    
-    String managedScopesSetting = 
-    	portletContext.getInitParameter(Bridge.MAX_MANAGED_REQUEST_SCOPES);
-    if (managedScopesSetting != null)
+    Map<String, Object> scopeMap = mRequestScopeStore.get(scopeKey);
+    if (scopeMap == null)
     {
-      managedScopes = Integer.parseInt(managedScopesSetting);
+      // Scope has been previously removed -- so no scope to update
+      return;
     }
+
+    // Prepare the value for storing as a preserved parameter
+    // Store as an array of Strings with just one entry as per
+    // portlet request
+    String[] values = new String[1];
+    values[0] = updatedViewStateParam;
+
+    // Now get the RequestParameters from the scope.  The stored scope is
+    // never modified in place (other renders of the same action lifecycle
+    // may be reading it) so update a copy and store that.
+    @SuppressWarnings("unchecked")
+    Map<String, String[]> requestParams = (Map<String, String[]>)scopeMap.get(REQUEST_PARAMETERS);
     
-    return new LRUMap(managedScopes);
+    Map<String, String[]> newParams = (requestParams == null) ?
+      new HashMap<String, String[]>(1) : new HashMap<String, String[]>(requestParams);
+    newParams.put(ResponseStateManager.VIEW_STATE_PARAM, values);
+    mRequestScopeStore.setAttribute(scopeKey, REQUEST_PARAMETERS, newParams);
   }
 
   @SuppressWarnings("unchecked")
@@ -811,59 +979,69 @@ public class BridgeImpl
     }
   }
 
-  private String initBridgeRequestScope(ActionRequest request, ActionResponse response)
+  private ScopeKey initBridgeRequestScope(ActionRequest request, ActionResponse response)
   {
 
-    // Generate an RMI UID, which is a unique identifier WITHIN the local
-    // host. This will be used as the new lifecyleID
-    UID uid = new UID();
-    String requestScopeId = qualifyScopeId(mPortletConfig.getPortletName(),
-                                           request.getPortletSession(true).getId(),
-                                           uid.toString());
+    // The new lifecycle's key is qualified by this portlet and the session
+    // but only its (node unique) id is sent to the client -- the rest is
+    // recovered from the render requests it comes back on.
+    ScopeKey scopeKey = 
+      ScopeKey.newKey(mPortletConfig.getPortletName(),
+                      ScopeKey.getSessionId(request.getPortletSession(true), true));
 
     // set in response render parameter so will receive in future calls
     // however don't store internally until there is specific state to
     // manage
-    response.setRenderParameter(REQUEST_SCOPE_ID_RENDER_PARAM, requestScopeId);
+    response.setRenderParameter(REQUEST_SCOPE_ID_RENDER_PARAM, scopeKey.getId());
 
-    return requestScopeId;
+    return scopeKey;
   }
 
-  private void saveBridgeRequestScopeData(FacesContext context, String scopeId, 
-                                          List<String> preExistingList)
+  private ScopeKey getBridgeRequestScopeKey(RenderRequest request)
+  {
+    String scopeId = request.getParameter(REQUEST_SCOPE_ID_RENDER_PARAM);
+    if (scopeId == null)
+    {
+      return null;
+    }
+
+    // scopes are always created in a session -- without one there is
+    // nothing to restore
+    PortletSession session = request.getPortletSession(false);
+    String sessionId = (session != null) ? ScopeKey.getSessionId(session, false) : null;
+    if (sessionId == null)
+    {
+      return null;
+    }
+    bindSession(session);
+
+    return new ScopeKey(mPortletConfig.getPortletName(), sessionId, scopeId);
+  }
+
+  private void saveBridgeRequestScopeData(FacesContext context, ScopeKey scopeKey, 
+                                          Set<String> preExistingList,
+                                          Set<String> capturedAttributes)
   {
 
     // Store the RequestMap @ the bridge's request scope
-    putBridgeRequestScopeData(scopeId, 
-                              copyRequestMap(context.getExternalContext().getRequestMap(), preExistingList));
+    bindSession((PortletSession) context.getExternalContext().getSession(true));
+    Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
+    putBridgeRequestScopeData(scopeKey, 
+                              (capturedAttributes != null) ?
+                                copyCapturedAttributes(requestMap, capturedAttributes) :
+                                copyRequestMap(requestMap, preExistingList));
 
     // flag the data so can remove it if the session terminates
     // as its unlikely useful if the session disappears
-    watchScope(context, scopeId);
+    watchScope(context, scopeKey);
   }
 
-  @SuppressWarnings("unchecked")
-  private void putBridgeRequestScopeData(String scopeId, Map<String, Object> o)
+  private void putBridgeRequestScopeData(ScopeKey scopeKey, Map<String, Object> o)
   {
-    PortletContext portletContext = mPortletConfig.getPortletContext();
-
-    // Get the request scope lock -- because its added during init it should
-    // always be there.
-    synchronized (portletContext.getAttribute(REQUEST_SCOPE_LOCK))
-    {
-      // get the managedScopeMap
-      LRUMap requestScopeMap = (LRUMap) portletContext.getAttribute(REQUEST_SCOPE_MAP);
-
-      if (requestScopeMap == null)
-      {
-        requestScopeMap = createRequestScopeMap(portletContext);
-        portletContext.setAttribute(REQUEST_SCOPE_MAP, requestScopeMap);
-      }
-      requestScopeMap.put(scopeId, o);
-    }
+    mRequestScopeStore.put(scopeKey, o);
   }
 
-  private Map<String, Object> copyRequestMap(Map<String, Object> m, List<String> preExistingList)
+  private Map<String, Object> copyRequestMap(Map<String, Object> m, Set<String> preExistingList)
   {
     Map<String, Object> copy = new HashMap<String, Object>(m.size());
      
@@ -882,197 +1060,147 @@ public class BridgeImpl
     return copy;
   }
   
-  @SuppressWarnings("unchecked")
-  private List<String> getRequestAttributes(PortletRequest request)
-  {
-  	return Collections.list((Enumeration<String>)request.getAttributeNames());
-  }
-  
-  private boolean isExcludedFromBridgeRequestScope(String key, Object value, List<String> preExistingList)
+  /*
+   * Only attributes added during this action belong in the scope -- and the
+   * only ones captured are those added after the capture started.  Note:
+   * replacing an attribute doesn't make it one of ours; if it was ours its
+   * already been captured.
+   */
+  private Map<String, Object> copyCapturedAttributes(Map<String, Object> m, Set<String> names)
   {
-    return ((value.getClass().getAnnotation(ExcludeFromManagedRequestScope.class) != null) ||
-         (preExistingList != null && preExistingList.contains(key)) ||
-         isPreDefinedExcludedObject(key, value) ||
-         isConfiguredExcludedAttribute(key));
+    Map<String, Object> copy = new HashMap<String, Object>(names.size());
+    for (String key : names)
+    {
+      Object value = m.get(key);
+      if (value != null && !isExcludedFromBridgeRequestScope(key, value, null))
+      {
+        copy.put(key, value);
+      }
+    }
+    return copy;
   }
 
-  private boolean isPreDefinedExcludedObject(String s, Object o)
-  {
-    return o instanceof PortletConfig || o instanceof PortletContext || 
-      o instanceof PortletRequest || o instanceof PortletResponse || o instanceof PortletSession || 
-      o instanceof PortletPreferences || o instanceof PortalContext || o instanceof FacesContext || 
-      o instanceof ExternalContext || o instanceof ServletConfig || o instanceof ServletContext || 
-      o instanceof ServletRequest || o instanceof ServletResponse || o instanceof HttpSession || 
-      isInNamespace(s, "javax.portlet.") ||
-      isInNamespace(s, "javax.portlet.faces.") ||
-      isInNamespace(s, "javax.faces.") ||
-      isInNamespace(s, "javax.servlet.") ||
-      isInNamespace(s, "javax.servlet.include.") ||
-      s.equals(PREEXISTING_ATTRIBUTE_NAMES);
-    }
-  
-  private boolean isConfiguredExcludedAttribute(String s)
+  /*
+   * Starts recording the names of the attributes added to the request.  The
+   * names are recorded by the ServletRequestAttributeListener -- which may
+   * not be registered or may not be notified by this portlet container.  So
+   * check its working by setting a probe attribute.
+   * 
+   * Returns the (live) set of captured names or null if capture isn't working.
+   */
+  private Set<String> startAttributeCapture(PortletRequest request)
   {
-    if (mExcludedRequestAttributes == null)
-    {
-      return false;
-    }
-    
-    if (mExcludedRequestAttributes.contains(s))
+    Set<String> captured = new LinkedHashSet<String>();
+    request.setAttribute(CAPTURED_ATTRIBUTE_NAMES, captured);
+    request.setAttribute(CAPTURE_PROBE, Boolean.TRUE);
+    boolean working = captured.remove(CAPTURE_PROBE);
+    request.removeAttribute(CAPTURE_PROBE);
+
+    if (!working)
     {
-      return true;
+      request.removeAttribute(CAPTURED_ATTRIBUTE_NAMES);
+      return null;
     }
-    
-    // No direct match -- walk through this list and process namespace checks
-    Iterator<String> i = mExcludedRequestAttributes.iterator();
-    while (i.hasNext())
-    {
-      String exclude = i.next();
-      if (exclude.endsWith("*"))
-      {
-        if (isInNamespace(s, exclude.substring(0, exclude.length() - 1)))
-        {
-          return true;
-        }
-      }
-    }
-    return false;
+    return captured;
   }
-      
-  private boolean isInNamespace(String s, String namespace)
+
+  @SuppressWarnings("unchecked")
+  private Set<String> getRequestAttributes(PortletRequest request)
   {
-    // This is a non-recursive check so s must be the result of removing the namespace.
-    if (s.startsWith(namespace))
+    Set<String> names = new HashSet<String>();
+    Enumeration<String> e = (Enumeration<String>) request.getAttributeNames();
+    while (e.hasMoreElements())
     {
-    // extract entire namespace and compare
-    s = s.substring(0, s.lastIndexOf('.') + 1);
-    return s.equals(namespace);
+      names.add(e.nextElement());
     }
-    return false;
+    return names;
+  }
+  
+  private boolean isExcludedFromBridgeRequestScope(String key, Object value, Set<String> preExistingList)
+  {
+    return (preExistingList != null && preExistingList.contains(key)) ||
+      mExcludedAttributeMatcher.isExcluded(key, value);
   }
 
   @SuppressWarnings("unchecked")
-  private boolean restoreBridgeRequestScopeData(FacesContext context, String scopeId)
+  private boolean restoreBridgeRequestScopeData(FacesContext context, ScopeKey scopeKey)
     throws BridgeException
   {
 
-    PortletContext portletContext = mPortletConfig.getPortletContext();
     Map<String, Object> m;
-    Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
     
     //TODO: Since this is a private method, is it easier to ensure scope id is not null here thus replacing this with
     //an assert
-    if (scopeId == null)
+    if (scopeKey == null)
     {
       return false;
     }
 
-    // Get the data from the scope
-    synchronized (portletContext.getAttribute(REQUEST_SCOPE_LOCK))
+    m = mRequestScopeStore.get(scopeKey);
+    if (mRequestScopeMonitor != null)
     {
-      // get the managedScopeMap
-      LRUMap requestScopeMap = (LRUMap) portletContext.getAttribute(REQUEST_SCOPE_MAP);
-      // No scope for all renders before first action to this portletApp
-      if (requestScopeMap == null)
-      {
-        return false;
-      }
-
-      m = requestScopeMap.get(scopeId);
-      if (m == null)
-      {
-        return false;
-      }
+      mRequestScopeMonitor.recordRestore(m != null);
+    }
+    if (m == null)
+    {
+      return false;
     }
     
-    requestMap.putAll(m);
+    // Rather than copying the (possibly large) scope into the request
+    // layer it beneath the request's own attributes.  The stored scope is
+    // never modified so no copy is needed.
+    ExternalContext ec = context.getExternalContext();
+    ec.setRequest(new RequestScopeOverlayWrapper((RenderRequest) ec.getRequest(), m));
     return true;
   }
 
-  private boolean removeFromBridgeRequestScopeData(FacesContext context, String scopeId, 
+  private boolean removeFromBridgeRequestScopeData(FacesContext context, ScopeKey scopeKey, 
                                                    String key)
   {
-    PortletContext portletContext = mPortletConfig.getPortletContext();
-    Map<String, Object> m = null;
-
     //TODO: Since this is a private method, is it easier to ensure scope id is not null here thus replacing this with
     //an assert
-    if (scopeId == null)
+    if (scopeKey == null)
     {
       return false;
     }
 
-    // Get the data from the scope
-    synchronized (portletContext.getAttribute(REQUEST_SCOPE_LOCK))
-    {
-      // get the managedScopeMap
-      LRUMap requestScopeMap = (LRUMap) portletContext.getAttribute(REQUEST_SCOPE_MAP);
-      // No scope for all renders before first action to this portletApp
-      if (requestScopeMap == null)
-      {
-        return false;
-      }
-
-      m = requestScopeMap.get(scopeId);
-      if (m != null)
-      {
-        return m.remove(key) != null;
-      }
-
-    }
-
-    return false;
+    return mRequestScopeStore.removeAttribute(scopeKey, key);
   }
 
-  /*
-   * A scope is qualified first by the portlet this scope has been created for 
-   * and then second by the specific session this scope is used in.  By doing
-   * this we are able to remove this specific scope, all the scopes associated 
-   * with a particular session, or all the scopes associated with a particular
-   * portlet regardless of sessions.
-   */
-
-  private String qualifyScopeId(String portletId, String sessionId, String scopeId)
+  private void watchScope(FacesContext context, ScopeKey scopeKey)
   {
-    // a qualified scope Id must at a minimum be qualified by a portletId
-    if (portletId == null) portletId = mPortletConfig.getPortletName();
-    
-    StringBuffer sb = new StringBuffer(portletId);
-    sb.append(':');
-    if (sessionId != null) 
+    PortletSession session = (PortletSession) context.getExternalContext().getSession(true);
+    if (mRequestScopeStore instanceof SessionBoundRequestScopeStore)
     {
-      sb.append(sessionId);
-      sb.append(':');
-      if (scopeId != null)
-      {
-        sb.append(scopeId);
-      }
+      // the scopes live in the session and go away with it -- just let the
+      // session know they changed
+      bindSession(session);
+      return;
     }
-
-    return sb.toString();
-  }
-
-  private void watchScope(FacesContext context, String scopeId)
-  {
-    PortletSession session = (PortletSession) context.getExternalContext().getSession(true);
     if (session != null)
     {
       RequestScopeListener scopeListener = 
         (RequestScopeListener) session.getAttribute(REQUEST_SCOPE_LISTENER);
       if (scopeListener == null)
       {
-        // only store the qualified prefix
-        // if invalidated we walk the entire REQUEST_SCOPE Map and
-        // remove
-        // every scope that starts with this prefix.
-        session.setAttribute(REQUEST_SCOPE_LISTENER, new RequestScopeListener(
-                                                       qualifyScopeId(mPortletConfig.getPortletName(),
-                                                                      session.getId(),
-                                                                      null)));
+        // if invalidated we remove every scope this portlet created
+        // in this session.
+        session.setAttribute(REQUEST_SCOPE_LISTENER, 
+                             new RequestScopeListener(mRequestScopeStore,
+                                                      mPortletConfig.getPortletName(),
+                                                      scopeKey.getSessionId()));
       }
     }
   }
 
+  private void bindSession(PortletSession session)
+  {
+    if (session != null && mRequestScopeStore instanceof SessionBoundRequestScopeStore)
+    {
+      ((SessionBoundRequestScopeStore) mRequestScopeStore).bindSession(session);
+    }
+  }
+
   private void finalizeActionResponse(FacesContext context)
     throws IOException
   {
@@ -1113,54 +1241,35 @@ public class BridgeImpl
   // notify this scope's attributes that they are being removed
   private void notifyPreDestroy(Object o)
   {
-    Method[] methods = o.getClass().getMethods();
-    for (int m = 0; m < methods.length; m++)
-    {
-      if (methods[m].isAnnotationPresent(BridgePreDestroy.class))
-      {
-        try
-        {
-          methods[m].invoke(o, null);
-        }
-        catch (Exception e)
-        {
-            // TODO: log problem
-            // do nothing and forge ahead
-            ;
-        }
-      }
-    }
+    mPreDestroyMethods.invoke(o, getPortletContext());
   }
 
-  private void removeRequestScopes(String scopePrefix)
+  // null once the bridge is destroyed
+  private PortletContext getPortletContext()
   {
+    PortletConfig config = mPortletConfig;
+    return config != null ? config.getPortletContext() : null;
+  }
 
-    // Get the RequestScope Map and remove all entries/scopes with this prefix
-    PortletContext portletContext = mPortletConfig.getPortletContext();
-
-    // Get the request scope lock -- because its added during init it should
-    // always be there.
-    Object lock = portletContext.getAttribute(REQUEST_SCOPE_LOCK);
-    if (lock == null)
-      return;
+  private void removeRequestScope(ScopeKey scopeKey)
+  {
+    mRequestScopeStore.remove(scopeKey);
+  }
 
-    synchronized (lock)
+  /*
+   * Removes all the scopes the portlet created in the session or if
+   * sessionId is null all the scopes the portlet created.
+   */
+  private void removeRequestScopes(BridgeRequestScopeStore store, String portletName,
+                                   String sessionId)
+  {
+    if (sessionId != null)
     {
-      // get the managedScopeMap
-      LRUMap requestScopeMap = (LRUMap) portletContext.getAttribute(REQUEST_SCOPE_MAP);
-
-      if (requestScopeMap != null)
-      {
-      	Iterator<String> iterator = requestScopeMap.keySet().iterator();
-      	while(iterator.hasNext())
-      	{
-      		String scopeId = iterator.next();
-          if (scopeId != null && scopeId.startsWith(scopePrefix))
-          {
-          	iterator.remove();
-          }
-      	}
-      }
+      store.removeSessionScopes(portletName, sessionId);
+    }
+    else
+    {
+      store.removePortletScopes(portletName);
     }
   }
   
@@ -1208,114 +1317,45 @@ public class BridgeImpl
     }
   }
 
-  private final class LRUMap
-    extends LinkedHashMap<String, Map<String, Object>>
+  private final class ScopeRemovalListener
+    implements BridgeRequestScopeStore.RemovalListener
   {
+    // Hold onto the tracer rather than going through the bridge as the
+    // store (and hence this listener) outlives the bridge that created it
+    private ScopeTracer mTracer = null;
 
-    /**
-     * 
-     */
-    private static final long serialVersionUID = 4372455368577337965L;
-    private int mMaxCapacity;
-
-    public LRUMap(int maxCapacity)
+    public ScopeRemovalListener(ScopeTracer tracer)
     {
-      super(maxCapacity, 1.0f, true);
-      mMaxCapacity = maxCapacity;
+      mTracer = tracer;
     }
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<String, Map<String,Object>> eldest)
+    public void scopeRemoved(ScopeKey scopeKey, Map<String, Object> scope)
     {
-      // manually remove the entry so we can ensure notifyPreDestroy is only
-      // called once
-      if (size() > mMaxCapacity)
+      if (mTracer.isEnabled())
       {
-        // side effect of this call is to notify PreDestroy
-        remove(eldest.getKey());
+        mTracer.trace("REMOVED", scopeKey, scope);
       }
-      return false;
-    }
-    
-    public Map<String,Object> remove(String key) 
-    {
-      dumpScopeId(key, "RemovePhase");
-      Map<String,Object> o = super.remove(key);
-      // notify attributes maintained in this object (map) they are going away
-      // Method in the outer BridgeImpl class
-      if (o != null) notifyPreDestroy(o);
-      return o;
-    }
-    
-    public Map<String,Object> put(String key, Map<String,Object> value)
-    {
-      Map<String,Object> o = super.put(key, value);
       // notify attributes maintained in this object (map) they are going away
       // Method in the outer BridgeImpl class
-      if (o != null) notifyPreDestroy(o);
-      return o;      
-    }
-
-  }
-
-  // TODO: Should we store these as attributes of the ViewTree??? It would
-  // work as
-  // everything is serializable. -- Issue is we need to implement a
-  // PhaseListener to
-  // to deal with this -- at the moment I prefer to isolate the Faces
-  // extensions from this
-  // detail and leave it all in this controller part.
-
-  private final class FacesMessageState
-    implements Serializable
-  {
-    /**
-     * 
-     */
-    private static final long serialVersionUID = 8438070672451887050L;
-    // For saving and restoring FacesMessages
-    private Map<String, List<FacesMessage>> mMessages = new HashMap<String, List<FacesMessage>>(); // key=clientId;
-
-    // value=FacesMessages
-
-    public void addMessage(String clientId, FacesMessage message)
-    {
-      List<FacesMessage> list = mMessages.get(clientId);
-      if (list == null)
-      {
-        list = new ArrayList<FacesMessage>();
-        mMessages.put(clientId, list);
-      }
-      list.add(message);
-    }
-
-    public List<FacesMessage> getMessages(String clientId)
-    {
-      List<FacesMessage> list = mMessages.get(clientId);
-      if (list != null)
-      {
-        return list;
-      }
-      else
-      {
-        return Collections.emptyList();
-      }
-    }
-
-    public Set<String> getClientIds()
-    {
-      return mMessages.keySet();
+      notifyPreDestroy(scope);
     }
   }
 
   private final class RequestScopeListener
     implements HttpSessionBindingListener
   {
-    String mScopePrefix = null;
-
-    public RequestScopeListener(String scopePrefix)
+    String mPortletName = null;
+    String mSessionId = null;
+    // the session may outlive this bridge instance so hold onto the store
+    // rather than going through the bridge
+    BridgeRequestScopeStore mStore = null;
+
+    public RequestScopeListener(BridgeRequestScopeStore store, String portletName,
+                                String sessionId)
     {
-      mScopePrefix = scopePrefix;
+      mStore = store;
+      mPortletName = portletName;
+      mSessionId = sessionId;
     }
 
     public void valueBound(HttpSessionBindingEvent event)
@@ -1326,7 +1366,7 @@ public class BridgeImpl
     public void valueUnbound(HttpSessionBindingEvent event)
     {
       // Call is in the BridgeImpl class
-      removeRequestScopes(mScopePrefix);
+      removeRequestScopes(mStore, mPortletName, mSessionId);
     }
 
   }
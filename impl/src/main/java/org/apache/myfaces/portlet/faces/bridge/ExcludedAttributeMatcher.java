@@ -0,0 +1,210 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+import javax.portlet.PortalContext;
+import javax.portlet.PortletConfig;
+import javax.portlet.PortletContext;
+import javax.portlet.PortletPreferences;
+import javax.portlet.PortletRequest;
+import javax.portlet.PortletResponse;
+import javax.portlet.PortletSession;
+import javax.portlet.faces.annotation.ExcludeFromManagedRequestScope;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Decides which request attributes are excluded from the bridge's managed request scope.
+ * The predefined and configured exclusions are compiled once so that classifying an
+ * attribute takes a few hash lookups and allocates nothing:
+ * <ul>
+ * <li>excluded names are held in a hash set</li>
+ * <li>excluded namespaces (configured as <code>namespace.*</code>) are grouped by length.
+ * A namespace exclusion is not recursive -- it only matches names whose namespace (all up
+ * to and including the last '.') is exactly the excluded one -- so only the namespaces of
+ * that length need comparing</li>
+ * <li>whether values of a class are excluded (by type or because the class is annotated
+ * {@link ExcludeFromManagedRequestScope}) is decided once per class</li>
+ * </ul>
+ */
+final class ExcludedAttributeMatcher
+{
+  // Values of these types are never saved
+  private static final Class<?>[] EXCLUDED_TYPES = 
+  {
+    PortletConfig.class, PortletContext.class, PortletRequest.class, PortletResponse.class,
+    PortletSession.class, PortletPreferences.class, PortalContext.class, FacesContext.class,
+    ExternalContext.class, ServletConfig.class, ServletContext.class, ServletRequest.class,
+    ServletResponse.class, HttpSession.class
+  };
+
+  private static final String[] EXCLUDED_NAMESPACES =
+  {
+    "javax.portlet.", "javax.portlet.faces.", "javax.faces.", "javax.servlet.",
+    "javax.servlet.include."
+  };
+
+  private final Set<String> mNames = new HashSet<String>();
+  // indexed by namespace length
+  private final String[][] mNamespaces;
+  private final ConcurrentHashMap<Class<?>, Boolean> mExcludedClasses =
+    new ConcurrentHashMap<Class<?>, Boolean>();
+
+  /**
+   * @param excludedAttributes
+   *          the configured exclusions: names or namespaces of the form
+   *          <code>namespace.*</code>
+   * @param excludedNames
+   *          further names to exclude
+   */
+  public ExcludedAttributeMatcher(Collection<String> excludedAttributes, String... excludedNames)
+  {
+    List<String> namespaces = new ArrayList<String>();
+    for (String namespace : EXCLUDED_NAMESPACES)
+    {
+      namespaces.add(namespace);
+    }
+    for (String name : excludedNames)
+    {
+      mNames.add(name);
+    }
+    if (excludedAttributes != null)
+    {
+      for (String exclude : excludedAttributes)
+      {
+        if (exclude.endsWith("*"))
+        {
+          namespaces.add(exclude.substring(0, exclude.length() - 1));
+        }
+        else
+        {
+          mNames.add(exclude);
+        }
+      }
+    }
+
+    int maxLength = 0;
+    for (String namespace : namespaces)
+    {
+      maxLength = Math.max(maxLength, namespace.length());
+    }
+    List<List<String>> byLength = new ArrayList<List<String>>(maxLength + 1);
+    for (int i = 0; i <= maxLength; i++)
+    {
+      byLength.add(null);
+    }
+    for (String namespace : namespaces)
+    {
+      List<String> l = byLength.get(namespace.length());
+      if (l == null)
+      {
+        l = new ArrayList<String>(2);
+        byLength.set(namespace.length(), l);
+      }
+      if (!l.contains(namespace))
+      {
+        l.add(namespace);
+      }
+    }
+    mNamespaces = new String[maxLength + 1][];
+    for (int i = 0; i <= maxLength; i++)
+    {
+      List<String> l = byLength.get(i);
+      if (l != null)
+      {
+        mNamespaces[i] = l.toArray(new String[l.size()]);
+      }
+    }
+  }
+
+  public boolean isExcluded(String name, Object value)
+  {
+    return mNames.contains(name) || isInExcludedNamespace(name) ||
+      isExcludedClass(value.getClass());
+  }
+
+  /**
+   * Forgets the classes seen so far.
+   */
+  public void clear()
+  {
+    mExcludedClasses.clear();
+  }
+
+  private boolean isInExcludedNamespace(String name)
+  {
+    // the namespace includes the trailing '.'
+    int length = name.lastIndexOf('.') + 1;
+    if (length == 0 || length >= mNamespaces.length || mNamespaces[length] == null)
+    {
+      return false;
+    }
+
+    String[] namespaces = mNamespaces[length];
+    for (int i = 0; i < namespaces.length; i++)
+    {
+      if (name.regionMatches(0, namespaces[i], 0, length))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isExcludedClass(Class<?> c)
+  {
+    Boolean excluded = mExcludedClasses.get(c);
+    if (excluded == null)
+    {
+      excluded = Boolean.valueOf(isExcludedType(c));
+      mExcludedClasses.put(c, excluded);
+    }
+    return excluded.booleanValue();
+  }
+
+  private static boolean isExcludedType(Class<?> c)
+  {
+    if (c.getAnnotation(ExcludeFromManagedRequestScope.class) != null)
+    {
+      return true;
+    }
+    for (int i = 0; i < EXCLUDED_TYPES.length; i++)
+    {
+      if (EXCLUDED_TYPES[i].isAssignableFrom(c))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,254 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.faces.FacesException;
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.FacesContext;
+
+import org.apache.myfaces.portlet.faces.bridge.scope.SerializationValueCodec;
+
+/**
+ * The saved state of a Faces view: the structure of its component tree (each component's
+ * class and id) plus the state the components themselves save
+ * (<code>UIComponent.processSaveState</code>).  Much smaller than the live tree it was
+ * taken from -- and optionally serialized and compressed on top -- it is what the bridge
+ * keeps in the managed request scope when configured to.  The tree is only rebuilt when
+ * the first render following the action asks for it.
+ * <p>
+ * As with Faces' own state saving transient components aren't saved and every component
+ * class must have a public no-arg constructor.
+ */
+final class SavedView
+  implements Serializable
+{
+  private static final long serialVersionUID = -3150283641952714063L;
+
+  private static final SerializationValueCodec sCodec = new SerializationValueCodec();
+
+  // either both of these
+  private Node mStructure = null;
+  private Object mState = null;
+  // or the two serialized and deflated
+  private byte[] mCompressed = null;
+  private int mLength = 0;
+
+  private SavedView()
+  {
+  }
+
+  /**
+   * Saves a view.
+   * 
+   * @param compress
+   *          serialize and compress the saved view
+   * @throws IOException
+   *           if compressing and the view's state isn't serializable
+   */
+  public static SavedView save(FacesContext context, UIViewRoot viewRoot, boolean compress)
+    throws IOException
+  {
+    SavedView view = new SavedView();
+    Node structure = Node.save(viewRoot);
+    Object state = viewRoot.processSaveState(context);
+    if (!compress)
+    {
+      view.mStructure = structure;
+      view.mState = state;
+      return view;
+    }
+
+    byte[] serialized = sCodec.encode(Arrays.asList(structure, state));
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try
+    {
+      deflater.setInput(serialized);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(serialized.length / 4 + 64);
+      byte[] buf = new byte[4096];
+      while (!deflater.finished())
+      {
+        out.write(buf, 0, deflater.deflate(buf));
+      }
+      view.mCompressed = out.toByteArray();
+      view.mLength = serialized.length;
+    }
+    finally
+    {
+      deflater.end();
+    }
+    return view;
+  }
+
+  /**
+   * Rebuilds the view.
+   */
+  public UIViewRoot restore(FacesContext context)
+    throws FacesException
+  {
+    Node structure = mStructure;
+    Object state = mState;
+    ClassLoader cl = Thread.currentThread().getContextClassLoader();
+    if (mCompressed != null)
+    {
+      Inflater inflater = new Inflater();
+      try
+      {
+        byte[] serialized = new byte[mLength];
+        inflater.setInput(mCompressed);
+        int length = 0;
+        while (length < mLength && !inflater.finished())
+        {
+          length += inflater.inflate(serialized, length, mLength - length);
+        }
+        List<Object> values = sCodec.decode(serialized, 0, length, cl);
+        structure = (Node) values.get(0);
+        state = values.get(1);
+      }
+      catch (DataFormatException e)
+      {
+        throw new FacesException("Unable to restore the saved view", e);
+      }
+      catch (IOException e)
+      {
+        throw new FacesException("Unable to restore the saved view", e);
+      }
+      catch (ClassNotFoundException e)
+      {
+        throw new FacesException("Unable to restore the saved view", e);
+      }
+      finally
+      {
+        inflater.end();
+      }
+    }
+
+    UIViewRoot viewRoot = (UIViewRoot) structure.restore(cl);
+    viewRoot.processRestoreState(context, state);
+    return viewRoot;
+  }
+
+  /*
+   * A component's place in the tree.
+   */
+  private static final class Node
+    implements Serializable
+  {
+    private static final long serialVersionUID = 4398127635012098734L;
+
+    private static final Node[] NO_NODES = new Node[0];
+
+    private String mClassName = null;
+    private String mId = null;
+    private Node[] mChildren = NO_NODES;
+    private String[] mFacetNames = null;
+    private Node[] mFacets = NO_NODES;
+
+    public static Node save(UIComponent component)
+    {
+      Node node = new Node();
+      node.mClassName = component.getClass().getName();
+      node.mId = component.getId();
+
+      if (component.getChildCount() > 0)
+      {
+        List<Node> children = new ArrayList<Node>(component.getChildCount());
+        for (Iterator<UIComponent> i = component.getChildren().iterator(); i.hasNext();)
+        {
+          UIComponent child = i.next();
+          if (!child.isTransient())
+          {
+            children.add(save(child));
+          }
+        }
+        node.mChildren = children.toArray(new Node[children.size()]);
+      }
+
+      Map<String, UIComponent> facets = component.getFacets();
+      if (!facets.isEmpty())
+      {
+        List<String> names = new ArrayList<String>(facets.size());
+        List<Node> nodes = new ArrayList<Node>(facets.size());
+        for (Map.Entry<String, UIComponent> facet : facets.entrySet())
+        {
+          if (!facet.getValue().isTransient())
+          {
+            names.add(facet.getKey());
+            nodes.add(save(facet.getValue()));
+          }
+        }
+        node.mFacetNames = names.toArray(new String[names.size()]);
+        node.mFacets = nodes.toArray(new Node[nodes.size()]);
+      }
+      return node;
+    }
+
+    public UIComponent restore(ClassLoader cl)
+      throws FacesException
+    {
+      UIComponent component;
+      try
+      {
+        Class<?> c = (cl != null) ? Class.forName(mClassName, true, cl) : Class.forName(mClassName);
+        component = (UIComponent) c.newInstance();
+      }
+      catch (Exception e)
+      {
+        throw new FacesException("Unable to restore component of class " + mClassName, e);
+      }
+      if (mId != null)
+      {
+        component.setId(mId);
+      }
+
+      if (mChildren.length > 0)
+      {
+        List<UIComponent> children = component.getChildren();
+        for (int i = 0; i < mChildren.length; i++)
+        {
+          children.add(mChildren[i].restore(cl));
+        }
+      }
+      if (mFacets.length > 0)
+      {
+        Map<String, UIComponent> facets = component.getFacets();
+        for (int i = 0; i < mFacets.length; i++)
+        {
+          facets.put(mFacetNames[i], mFacets[i].restore(cl));
+        }
+      }
+      return component;
+    }
+  }
+}
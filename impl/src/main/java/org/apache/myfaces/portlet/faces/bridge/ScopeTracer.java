@@ -0,0 +1,197 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+import org.apache.myfaces.portlet.faces.bridge.scope.ScopeKey;
+
+/**
+ * Traces what happens to the bridge's managed request scopes.  Off unless configured: then
+ * callers only pay for a field test, so they check {@link #isEnabled} before doing any work
+ * (such as looking the scope up) to produce a trace.
+ * <p>
+ * At <code>EVENTS</code> each scope event is a single log line.  At <code>CONTENTS</code> the
+ * line also lists the names of the scope's attributes, but as large scopes make for large
+ * lines at most one such dump is written per dump interval; events in between are traced as
+ * at <code>EVENTS</code> and the number skipped is reported with the next dump.
+ */
+final class ScopeTracer
+{
+  // PortletContext init parameter: OFF (the default), EVENTS or CONTENTS
+  public static final String TRACE_LEVEL = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_TRACE";
+
+  // PortletContext init parameter: least milliseconds between two scope dumps.
+  // Defaults to a second; 0 dumps every scope traced.
+  public static final String DUMP_INTERVAL = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_TRACE_DUMP_INTERVAL";
+
+  private static final long DEFAULT_DUMP_INTERVAL = 1000;
+
+  public enum Level
+  {
+    OFF, EVENTS, CONTENTS
+  }
+
+  private final PortletContext mPortletContext;
+  private final Level mLevel;
+  private final long mDumpInterval;
+  private final AtomicLong mNextDump = new AtomicLong();
+  private final AtomicInteger mSkippedDumps = new AtomicInteger();
+
+  private ScopeTracer(PortletContext context, Level level, long dumpInterval)
+  {
+    mPortletContext = context;
+    mLevel = level;
+    mDumpInterval = dumpInterval;
+  }
+
+  /**
+   * Creates a tracer configured by the context's init parameters.
+   */
+  public static ScopeTracer getInstance(PortletContext context)
+    throws BridgeException
+  {
+    String setting = context.getInitParameter(TRACE_LEVEL);
+    Level level = Level.OFF;
+    if (setting != null)
+    {
+      try
+      {
+        level = Level.valueOf(setting.trim().toUpperCase());
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new BridgeException("Invalid value for context init parameter " + TRACE_LEVEL +
+                                  ": " + setting);
+      }
+    }
+
+    long interval = DEFAULT_DUMP_INTERVAL;
+    setting = context.getInitParameter(DUMP_INTERVAL);
+    if (setting != null)
+    {
+      try
+      {
+        interval = Long.parseLong(setting.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        throw new BridgeException("Invalid value for context init parameter " + DUMP_INTERVAL +
+                                  ": " + setting);
+      }
+    }
+
+    return new ScopeTracer(context, level, interval);
+  }
+
+  public boolean isEnabled()
+  {
+    return mLevel != Level.OFF;
+  }
+
+  /**
+   * @return true if scope contents are traced (and so the scope must be passed to
+   *         {@link #trace(String, ScopeKey, Map)})
+   */
+  public boolean isDumping()
+  {
+    return mLevel == Level.CONTENTS;
+  }
+
+  /**
+   * Traces an event for a scope without describing the scope itself.
+   * 
+   * @param event
+   *          what happened, e.g. the phase
+   * @param key
+   *          the scope's key
+   */
+  public void trace(String event, ScopeKey key)
+  {
+    if (mLevel == Level.OFF)
+    {
+      return;
+    }
+    mPortletContext.log("Request scope " + event + ": " + key);
+  }
+
+  /**
+   * Traces an event for a scope.
+   * 
+   * @param event
+   *          what happened, e.g. the phase
+   * @param key
+   *          the scope's key
+   * @param scope
+   *          the scope or null if there is no such scope (any longer)
+   */
+  public void trace(String event, ScopeKey key, Map<String, Object> scope)
+  {
+    if (mLevel == Level.OFF)
+    {
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder(128);
+    sb.append("Request scope ").append(event).append(": ").append(key);
+    if (scope == null)
+    {
+      sb.append(" (none)");
+    }
+    else
+    {
+      sb.append(" (").append(scope.size()).append(" attributes)");
+      if (mLevel == Level.CONTENTS && canDump())
+      {
+        int skipped = mSkippedDumps.getAndSet(0);
+        if (skipped > 0)
+        {
+          sb.append(" [").append(skipped).append(" dumps skipped]");
+        }
+        // Note: scopes are never modified once stored so no need to lock
+        Iterator<String> i = scope.keySet().iterator();
+        while (i.hasNext())
+        {
+          sb.append("\n     ").append(i.next());
+        }
+      }
+    }
+    mPortletContext.log(sb.toString());
+  }
+
+  private boolean canDump()
+  {
+    long now = System.currentTimeMillis();
+    long next = mNextDump.get();
+    if (now >= next && mNextDump.compareAndSet(next, now + mDumpInterval))
+    {
+      return true;
+    }
+    mSkippedDumps.incrementAndGet();
+    return false;
+  }
+}
@@ -0,0 +1,487 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.Bridge;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * Base class for stores that keep their scopes in a {@link ConcurrentRequestScopeMap}.
+ * Subclasses only decide how a scope is represented while it is held: {@link #encode}
+ * turns a scope into the held value, {@link #decode} turns it back and {@link #release}
+ * frees whatever the held value occupies once it is no longer reachable from the map.
+ * <p>
+ * If scopes expire (see {@link BridgeRequestScopeStore#IDLE_TIMEOUT} and
+ * {@link BridgeRequestScopeStore#MAX_AGE}) a low priority daemon thread periodically
+ * sweeps the expired ones out of the store until it is destroyed.
+ * <p>
+ * If the bytes the scopes retain are limited (see {@link BridgeRequestScopeStore#MAX_BYTES}
+ * and {@link BridgeRequestScopeStore#MAX_PORTLET_BYTES}) each scope is weighed by
+ * {@link #weigh} as it is stored.
+ * <p>
+ * The scopes of a session and of a portlet window may be limited by quotas (see
+ * {@link BridgeRequestScopeStore#MAX_SESSION_SCOPES} and
+ * {@link BridgeRequestScopeStore#MAX_WINDOW_SCOPES}).
+ * <p>
+ * Which scope a full store evicts is chosen by the
+ * {@link BridgeRequestScopeStore#EVICTION_POLICY}.
+ */
+public abstract class AbstractRequestScopeStore<V>
+  implements InstrumentedRequestScopeStore
+{
+  private PortletContext mPortletContext = null;
+  private RemovalListener mListener = null;
+  private ConcurrentRequestScopeMap<V> mScopes = null;
+  private ScheduledExecutorService mReaper = null;
+  private ScopeSizeEstimator mSizeEstimator = null;
+  private final AtomicLong mStored = new AtomicLong();
+  private final AtomicLong mStoredAttributes = new AtomicLong();
+
+  private static final int MAX_REAP_INTERVAL = 60;
+
+  public void init(PortletContext context, RemovalListener listener)
+    throws BridgeException
+  {
+    mPortletContext = context;
+    mListener = listener;
+
+    int managedScopes = getIntInitParameter(Bridge.MAX_MANAGED_REQUEST_SCOPES,
+                                            DEFAULT_MAX_MANAGED_REQUEST_SCOPES);
+    int concurrency = getIntInitParameter(CONCURRENCY,
+                                          ConcurrentRequestScopeMap.DEFAULT_CONCURRENCY_LEVEL);
+    int idleTimeout = getIntInitParameter(IDLE_TIMEOUT, 0);
+    int maxAge = getIntInitParameter(MAX_AGE, 0);
+
+    mScopes = new ConcurrentRequestScopeMap<V>(managedScopes, concurrency,
+                                               idleTimeout * 1000L, maxAge * 1000L,
+                                               new ConcurrentRequestScopeMap.RemovalListener<V>()
+      {
+        public void scopeRemoved(ScopeKey key, V scope)
+        {
+          Map<String, Object> m = decode(scope);
+          release(scope);
+          if (m != null && mListener != null)
+          {
+            mListener.scopeRemoved(key, m);
+          }
+        }
+      });
+    mScopes.setWeightLimits(getByteSizeInitParameter(MAX_BYTES),
+                            getByteSizeInitParameter(MAX_PORTLET_BYTES));
+    mScopes.setQuotas(getIntInitParameter(MAX_SESSION_SCOPES, 0),
+                      getIntInitParameter(MAX_WINDOW_SCOPES, 0));
+    mScopes.setEvictionPolicy(getEvictionPolicy());
+    if (mScopes.isWeighted())
+    {
+      mSizeEstimator = new ScopeSizeEstimator();
+    }
+
+    if (mScopes.isExpiring())
+    {
+      startReaper(idleTimeout, maxAge);
+    }
+  }
+
+  public Map<String, Object> get(ScopeKey key)
+  {
+    V scope = mScopes.get(key);
+    while (scope != null)
+    {
+      Map<String, Object> m = decode(scope);
+      if (m != null)
+      {
+        return m;
+      }
+
+      // Only look again if a concurrent update replaced (and released) the
+      // value -- otherwise it can't be decoded and never will be
+      V current = mScopes.get(key);
+      if (current == scope)
+      {
+        return null;
+      }
+      scope = current;
+    }
+    return null;
+  }
+
+  public void put(ScopeKey key, Map<String, Object> scope)
+  {
+    V value = encode(scope);
+    mScopes.put(key, value, weighIfNeeded(scope, value));
+    mStored.incrementAndGet();
+    mStoredAttributes.addAndGet(scope.size());
+  }
+
+  public boolean setAttribute(ScopeKey key, String name, Object value)
+  {
+    return update(key, name, value, false);
+  }
+
+  public boolean removeAttribute(ScopeKey key, String name)
+  {
+    return update(key, name, null, true);
+  }
+
+  public boolean remove(ScopeKey key)
+  {
+    // the listener decodes (and releases) the scope
+    return mScopes.remove(key) != null;
+  }
+
+  public void removeSessionScopes(String portletName, String sessionId)
+  {
+    mScopes.removeSessionScopes(portletName, sessionId);
+  }
+
+  public void removePortletScopes(String portletName)
+  {
+    mScopes.removePortletScopes(portletName);
+  }
+
+  public int size()
+  {
+    return mScopes.size();
+  }
+
+  public int getMaxScopes()
+  {
+    return mScopes.getMaxCapacity();
+  }
+
+  public void setMaxScopes(int maxScopes)
+  {
+    mScopes.setMaxCapacity(maxScopes);
+  }
+
+  public long getEvictionCount()
+  {
+    return mScopes.getEvictionCount();
+  }
+
+  public long getExpirationCount()
+  {
+    return mScopes.getExpirationCount();
+  }
+
+  public long getSessionQuotaEvictionCount()
+  {
+    return mScopes.getSessionQuotaEvictionCount();
+  }
+
+  public long getWindowQuotaEvictionCount()
+  {
+    return mScopes.getWindowQuotaEvictionCount();
+  }
+
+  public long getWeight()
+  {
+    return mScopes.isWeighted() ? mScopes.getWeight() : -1;
+  }
+
+  public double getAverageAttributeCount()
+  {
+    long stored = mStored.get();
+    return stored > 0 ? (double) mStoredAttributes.get() / stored : 0;
+  }
+
+  public long getContendedLockCount()
+  {
+    return mScopes.getContendedLockCount();
+  }
+
+  public long getLockWaitTime()
+  {
+    return mScopes.getLockWaitTime();
+  }
+
+  public Set<String> getPortletNames()
+  {
+    return mScopes.getPortletNames();
+  }
+
+  public void destroy()
+  {
+    if (mReaper != null)
+    {
+      mReaper.shutdownNow();
+      mReaper = null;
+    }
+    if (mSizeEstimator != null)
+    {
+      // don't hold onto the application's classes
+      mSizeEstimator.clear();
+    }
+    // Otherwise leave the store functional -- sessions may still hold on to
+    // (and hence remove scopes from) this store after its been destroyed.
+    // Expired scopes are still removed when next looked up.
+  }
+
+  protected PortletContext getPortletContext()
+  {
+    return mPortletContext;
+  }
+
+  protected int getIntInitParameter(String name, int defaultValue)
+  {
+    String setting = mPortletContext.getInitParameter(name);
+    if (setting == null)
+    {
+      return defaultValue;
+    }
+
+    try
+    {
+      return Integer.parseInt(setting.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + name + ": " +
+                                setting);
+    }
+  }
+
+  private ConcurrentRequestScopeMap.EvictionPolicy getEvictionPolicy()
+  {
+    String setting = mPortletContext.getInitParameter(EVICTION_POLICY);
+    if (setting == null)
+    {
+      return ConcurrentRequestScopeMap.EvictionPolicy.LRU;
+    }
+
+    try
+    {
+      return ConcurrentRequestScopeMap.EvictionPolicy.valueOf(setting.trim().toUpperCase());
+    }
+    catch (IllegalArgumentException e)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + EVICTION_POLICY +
+                                ": " + setting);
+    }
+  }
+
+  /**
+   * Reads a size in bytes that may be suffixed with K, M or G.
+   * 
+   * @return the size or 0 if the parameter isn't set
+   */
+  protected long getByteSizeInitParameter(String name)
+  {
+    String setting = mPortletContext.getInitParameter(name);
+    if (setting == null)
+    {
+      return 0;
+    }
+
+    String value = setting.trim().toUpperCase();
+    long multiplier = 1;
+    if (value.endsWith("K"))
+    {
+      multiplier = 1024L;
+    }
+    else if (value.endsWith("M"))
+    {
+      multiplier = 1024L * 1024L;
+    }
+    else if (value.endsWith("G"))
+    {
+      multiplier = 1024L * 1024L * 1024L;
+    }
+    if (multiplier != 1)
+    {
+      value = value.substring(0, value.length() - 1).trim();
+    }
+
+    try
+    {
+      return Long.parseLong(value) * multiplier;
+    }
+    catch (NumberFormatException e)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + name + ": " +
+                                setting);
+    }
+  }
+
+  /**
+   * @return the estimator used to weigh scopes or null if scopes aren't weighed
+   */
+  protected ScopeSizeEstimator getSizeEstimator()
+  {
+    return mSizeEstimator;
+  }
+
+  private long weighIfNeeded(Map<String, Object> scope, V value)
+  {
+    if (mSizeEstimator == null)
+    {
+      return 0;
+    }
+    // never 0 as that means unweighed
+    return Math.max(1, weigh(scope, value));
+  }
+
+  private void startReaper(int idleTimeout, int maxAge)
+  {
+    int defaultInterval = MAX_REAP_INTERVAL;
+    if (idleTimeout > 0)
+    {
+      defaultInterval = Math.min(defaultInterval, idleTimeout);
+    }
+    if (maxAge > 0)
+    {
+      defaultInterval = Math.min(defaultInterval, maxAge);
+    }
+    int interval = getIntInitParameter(REAP_INTERVAL, defaultInterval);
+    if (interval <= 0)
+    {
+      // sweeping disabled -- expired scopes are only removed when looked up
+      return;
+    }
+
+    // Note: the thread inherits the context class loader of the thread
+    // initializing the store, i.e. the application's, which the PreDestroy
+    // notifications need.
+    final String threadName = "MyFaces Portlet Bridge request scope reaper: " +
+                              mPortletContext.getPortletContextName();
+    mReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r, threadName);
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    mReaper.scheduleWithFixedDelay(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            mScopes.removeExpired();
+          }
+          catch (Throwable t)
+          {
+            // don't let one bad listener stop all future sweeps
+            mPortletContext.log("Failed removing expired managed request scopes", t);
+          }
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Converts a scope into the value held in the map.
+   */
+  protected abstract V encode(Map<String, Object> scope);
+
+  /**
+   * Converts a held value back into the scope.  May be called after the value has been
+   * removed from the map (but not after it has been released).
+   */
+  protected abstract Map<String, Object> decode(V scope);
+
+  /**
+   * Returns the number of bytes a scope retains while held in the store.  Only called if
+   * the store's size is limited.  The default estimates the size of the scope's attributes
+   * on the heap.
+   * 
+   * @param scope
+   *          the scope
+   * @param value
+   *          the value {@link #encode} returned for the scope
+   */
+  protected long weigh(Map<String, Object> scope, V value)
+  {
+    return mSizeEstimator.estimate(scope);
+  }
+
+  /**
+   * Frees the resources held by a value that has left the map.  The default does nothing.
+   */
+  protected void release(V scope)
+  {
+  }
+
+  /*
+   * Scopes are never modified in place -- concurrent renders of the same action
+   * may be reading them -- instead a modified copy replaces the original.
+   */
+  private boolean update(ScopeKey key, String name, Object value, boolean remove)
+  {
+    V current = mScopes.get(key);
+    while (true)
+    {
+      if (current == null)
+      {
+        return false;
+      }
+
+      Map<String, Object> m = decode(current);
+      if (m == null)
+      {
+        // released by a concurrent update/removal -- look again; if the value
+        // is unchanged it can't be decoded and retrying won't help
+        V latest = mScopes.get(key);
+        if (latest == current)
+        {
+          return false;
+        }
+        current = latest;
+        continue;
+      }
+      if (remove && !m.containsKey(name))
+      {
+        return false;
+      }
+
+      Map<String, Object> copy = new HashMap<String, Object>(m);
+      if (remove)
+      {
+        copy.remove(name);
+      }
+      else
+      {
+        copy.put(name, value);
+      }
+
+      V replacement = encode(copy);
+      if (mScopes.replace(key, current, replacement, weighIfNeeded(copy, replacement)))
+      {
+        release(current);
+        return true;
+      }
+      // lost a race with another update/removal -- retry
+      release(replacement);
+      current = mScopes.get(key);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * Passes removed scopes on to another listener from a small pool of background threads so
+ * that slow cleanup (<code>BridgePreDestroy</code> methods closing connections, flushing
+ * caches, ...) doesn't hold up the request whose action happened to evict the scope.
+ * <p>
+ * Each removed scope is handed on as a single task so the listener still sees all of a
+ * scope's attributes together and in order; only the order between different scopes is
+ * lost.  The queue of waiting scopes is bounded: when it is full the removing thread
+ * notifies the listener itself, which slows it down until the pool catches up.
+ * <p>
+ * Enabled by setting the <code>PortletContext</code> init parameter
+ * <code>org.apache.myfaces.portlet.faces.REQUEST_SCOPE_REMOVAL_THREADS</code> to the number
+ * of threads.  <code>org.apache.myfaces.portlet.faces.REQUEST_SCOPE_REMOVAL_QUEUE_SIZE</code>
+ * bounds the queue (1000 by default).
+ */
+public class AsyncRemovalListener
+  implements BridgeRequestScopeStore.RemovalListener
+{
+  public static final String THREADS = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_REMOVAL_THREADS";
+  public static final String QUEUE_SIZE = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_REMOVAL_QUEUE_SIZE";
+
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+  // how long destroy waits for the queued notifications
+  private static final long DRAIN_TIMEOUT = 10;
+
+  private final PortletContext mPortletContext;
+  private final BridgeRequestScopeStore.RemovalListener mListener;
+  private final ThreadPoolExecutor mExecutor;
+  private final AtomicLong mCallerRuns = new AtomicLong();
+
+  private AsyncRemovalListener(PortletContext context,
+                               BridgeRequestScopeStore.RemovalListener listener, int threads,
+                               int queueSize)
+  {
+    mPortletContext = context;
+    mListener = listener;
+
+    // Note: the threads inherit the context class loader of the thread
+    // creating the store, i.e. the application's, which the notified
+    // attributes may need.
+    final String threadName = "MyFaces Portlet Bridge request scope removal: " +
+                              context.getPortletContextName() + " ";
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+    mExecutor = 
+      new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                             new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+        {
+          public Thread newThread(Runnable r)
+          {
+            Thread t = new Thread(r, threadName + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setContextClassLoader(cl);
+            return t;
+          }
+        }, new RejectedExecutionHandler()
+        {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+          {
+            // back-pressure: the remover does the work itself
+            if (!executor.isShutdown())
+            {
+              mCallerRuns.incrementAndGet();
+            }
+            r.run();
+          }
+        });
+  }
+
+  /**
+   * Wraps the listener if the context configures asynchronous notification.
+   * 
+   * @return the wrapper or null if notifications are to be synchronous
+   */
+  public static AsyncRemovalListener getInstance(PortletContext context,
+                                                 BridgeRequestScopeStore.RemovalListener listener)
+    throws BridgeException
+  {
+    int threads = getIntInitParameter(context, THREADS, 0);
+    if (threads <= 0 || listener == null)
+    {
+      return null;
+    }
+    int queueSize = getIntInitParameter(context, QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+    return new AsyncRemovalListener(context, listener, threads, Math.max(1, queueSize));
+  }
+
+  public void scopeRemoved(final ScopeKey key, final Map<String, Object> scope)
+  {
+    mExecutor.execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            mListener.scopeRemoved(key, scope);
+          }
+          catch (Throwable t)
+          {
+            mPortletContext.log("Failed notifying the removal of managed request scope " + key,
+                                t);
+          }
+        }
+      });
+  }
+
+  /**
+   * @return the number of removed scopes waiting to be handed on
+   */
+  public int getQueueDepth()
+  {
+    return mExecutor.getQueue().size();
+  }
+
+  /**
+   * @return the number of removed scopes handed on so far
+   */
+  public long getCompletedCount()
+  {
+    return mExecutor.getCompletedTaskCount();
+  }
+
+  /**
+   * @return the number of removed scopes the removing thread handed on itself as the queue
+   *         was full
+   */
+  public long getCallerRunsCount()
+  {
+    return mCallerRuns.get();
+  }
+
+  /**
+   * Hands on the scopes still queued and stops the threads.  Scopes removed afterwards are
+   * handed on by the removing thread.
+   */
+  public void destroy()
+  {
+    mExecutor.shutdown();
+    try
+    {
+      if (!mExecutor.awaitTermination(DRAIN_TIMEOUT, TimeUnit.SECONDS))
+      {
+        mPortletContext.log("Timed out notifying the removal of " + getQueueDepth() +
+                            " managed request scopes");
+        mExecutor.shutdownNow();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      mExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static int getIntInitParameter(PortletContext context, String name, int defaultValue)
+  {
+    String setting = context.getInitParameter(name);
+    if (setting == null)
+    {
+      return defaultValue;
+    }
+
+    try
+    {
+      return Integer.parseInt(setting.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + name + ": " +
+                                setting);
+    }
+  }
+}
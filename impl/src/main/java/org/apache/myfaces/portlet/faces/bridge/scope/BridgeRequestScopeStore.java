@@ -0,0 +1,166 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.util.Map;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * The <code>BridgeRequestScopeStore</code> holds the bridge's managed request scopes for a
+ * portlet application.  A managed request scope is the set of request attributes (plus the
+ * Faces view and any preserved action parameters) saved at the end of an action so they can
+ * be restored in the renders that follow it.
+ * <p>
+ * A store is shared by all the bridge instances in a portlet application that are
+ * configured to use the same store class.  The implementation is selected by
+ * {@link BridgeRequestScopeStoreFactory}; implementations must have a public no-arg
+ * constructor and be safe for concurrent use.
+ * <p>
+ * Scopes handed to {@link #put} are owned by the store afterwards and must not be modified
+ * by the caller.  Likewise the <code>Map</code> returned by {@link #get} must be treated
+ * as read-only; the attribute level updates ({@link #setAttribute},
+ * {@link #removeAttribute}) replace the stored scope rather than mutate it.
+ */
+public interface BridgeRequestScopeStore
+{
+  // Portlet or PortletContext init parameter naming the store implementation class
+  public static final String STORE_CLASS = "org.apache.myfaces.portlet.faces.RequestScopeStoreClass";
+
+  // Services entry naming the store implementation class
+  public static final String STORE_SERVICE_CLASSPATH =
+    "META-INF/services/org.apache.myfaces.portlet.faces.bridge.scope.BridgeRequestScopeStore";
+
+  // PortletContext init parameter: number of independently locked segments the
+  // store is split into.
+  public static final String CONCURRENCY = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_CONCURRENCY";
+
+  // PortletContext init parameter: seconds a scope may go unaccessed before it
+  // expires.  Not set (or 0) means scopes never go idle.
+  public static final String IDLE_TIMEOUT = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_IDLE_TIMEOUT";
+
+  // PortletContext init parameter: seconds a scope may exist before it expires
+  // regardless of use.  Not set (or 0) means scopes never grow too old.
+  public static final String MAX_AGE = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_MAX_AGE";
+
+  // PortletContext init parameter: seconds between sweeps for expired scopes.
+  // Defaults to the smaller of the idle timeout and max age (but at most a minute).
+  public static final String REAP_INTERVAL = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_REAP_INTERVAL";
+
+  // PortletContext init parameter: the most (in bytes, optionally suffixed with K, M
+  // or G) the scopes of the whole application may retain.  Not set means no limit.
+  public static final String MAX_BYTES = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_MAX_BYTES";
+
+  // PortletContext init parameter: the most (in bytes, optionally suffixed with K, M
+  // or G) the scopes of any one portlet may retain.  Not set means no limit.
+  public static final String MAX_PORTLET_BYTES = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_MAX_PORTLET_BYTES";
+
+  // PortletContext init parameter: the most scopes any one session may hold.
+  // Not set means no limit (other than the store's) unless the store says otherwise.
+  public static final String MAX_SESSION_SCOPES = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_MAX_SESSION_SCOPES";
+
+  // PortletContext init parameter: the most scopes any one portlet window (the
+  // portlet within a session) may hold -- e.g. 1 keeps just the latest action's.
+  // Not set means no limit.
+  public static final String MAX_WINDOW_SCOPES = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_MAX_WINDOW_SCOPES";
+
+  // PortletContext init parameter: how a full store chooses the scope to evict.  LRU
+  // (the default) evicts the least recently used scope; TINYLFU only lets a new scope
+  // displace an established one if it has been used more often.
+  public static final String EVICTION_POLICY = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_EVICTION_POLICY";
+
+  public static final int DEFAULT_MAX_MANAGED_REQUEST_SCOPES = 100;
+
+  /**
+   * Called when a scope leaves the store whether through eviction, expiry, replacement or
+   * explicit removal -- but not when it is updated via {@link BridgeRequestScopeStore#setAttribute}
+   * or {@link BridgeRequestScopeStore#removeAttribute}.
+   */
+  public interface RemovalListener
+  {
+    public void scopeRemoved(ScopeKey key, Map<String, Object> scope);
+  }
+
+  /**
+   * Called once, before the store is used.  Configuration is read from the
+   * <code>PortletContext</code> init parameters.
+   *
+   * @param context
+   *          the portlet application's context
+   * @param listener
+   *          notified whenever a scope leaves the store
+   */
+  public void init(PortletContext context, RemovalListener listener)
+    throws BridgeException;
+
+  /**
+   * @return the scope or null if there is no such scope (any longer)
+   */
+  public Map<String, Object> get(ScopeKey key);
+
+  /**
+   * Adds (or replaces) a scope.  The key names the portlet the scope was created for and
+   * the session it was created in.
+   */
+  public void put(ScopeKey key, Map<String, Object> scope);
+
+  /**
+   * Sets a single attribute of an existing scope.
+   *
+   * @return false if there is no such scope
+   */
+  public boolean setAttribute(ScopeKey key, String name, Object value);
+
+  /**
+   * Removes a single attribute of an existing scope.
+   *
+   * @return true if the attribute existed and was removed
+   */
+  public boolean removeAttribute(ScopeKey key, String name);
+
+  /**
+   * Removes a scope.
+   *
+   * @return false if there was no such scope
+   */
+  public boolean remove(ScopeKey key);
+
+  /**
+   * Removes all the scopes the portlet created in the session.
+   */
+  public void removeSessionScopes(String portletName, String sessionId);
+
+  /**
+   * Removes all the scopes the portlet created.
+   */
+  public void removePortletScopes(String portletName);
+
+  /**
+   * @return the number of scopes currently held
+   */
+  public int size();
+
+  /**
+   * Called once when the last bridge using this store is destroyed.  Releases any resources
+   * held by the store.
+   */
+  public void destroy();
+}
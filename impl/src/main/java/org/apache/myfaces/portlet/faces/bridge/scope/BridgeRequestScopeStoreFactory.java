@@ -0,0 +1,269 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+import javax.portlet.PortletConfig;
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * Locates the {@link BridgeRequestScopeStore} a bridge instance uses.  The store class is
+ * taken from (in order):
+ * <ol>
+ * <li>the portlet init parameter <code>org.apache.myfaces.portlet.faces.RequestScopeStoreClass</code></li>
+ * <li>the <code>PortletContext</code> init parameter of the same name</li>
+ * <li>the services entry
+ * <code>META-INF/services/org.apache.myfaces.portlet.faces.bridge.scope.BridgeRequestScopeStore</code></li>
+ * </ol>
+ * falling back to {@link HeapRequestScopeStore}.
+ * <p>
+ * Bridges in the same portlet application that use the same store class share a single
+ * instance.  It is destroyed when the last of them releases it.  Each store comes with a
+ * {@link RequestScopeStoreMonitor} registered for as long as the store is in use.
+ */
+public final class BridgeRequestScopeStoreFactory
+{
+  private static final String STORE_ATTRIBUTE_PREFIX =
+    "org.apache.myfaces.portlet.faces.requestScopeStore.";
+
+  private BridgeRequestScopeStoreFactory()
+  {
+  }
+
+  /**
+   * Returns the store for the portlet, creating (and initializing) it if this is the first
+   * bridge in the application to use it.  Each call must be paired with a call to
+   * {@link #releaseStore}.
+   *
+   * @param listener
+   *          notified of removed scopes (on a background thread if so configured, see
+   *          {@link AsyncRemovalListener}).  Only used if the store is created by this call.
+   */
+  public static BridgeRequestScopeStore acquireStore(PortletConfig config,
+                                                     BridgeRequestScopeStore.RemovalListener listener)
+    throws BridgeException
+  {
+    PortletContext context = config.getPortletContext();
+    String className = getStoreClassName(config);
+    String attributeName = STORE_ATTRIBUTE_PREFIX + className;
+
+    synchronized (context)
+    {
+      StoreHolder holder = (StoreHolder) context.getAttribute(attributeName);
+      if (holder == null)
+      {
+        BridgeRequestScopeStore store = createStore(className);
+        AsyncRemovalListener asyncListener = AsyncRemovalListener.getInstance(context, listener);
+        store.init(context, asyncListener != null ? asyncListener : listener);
+        holder = new StoreHolder(store, asyncListener);
+        holder.mMonitor.register(context);
+        context.setAttribute(attributeName, holder);
+      }
+      holder.mReferences++;
+      return holder.mStore;
+    }
+  }
+
+  /**
+   * @return the monitor of a store obtained from {@link #acquireStore} or null if the store
+   *         has since been destroyed
+   */
+  public static RequestScopeStoreMonitor getMonitor(PortletContext context,
+                                                    BridgeRequestScopeStore store)
+  {
+    String attributeName = STORE_ATTRIBUTE_PREFIX + store.getClass().getName();
+    synchronized (context)
+    {
+      StoreHolder holder = (StoreHolder) context.getAttribute(attributeName);
+      return (holder != null && holder.mStore == store) ? holder.mMonitor : null;
+    }
+  }
+
+  /**
+   * Releases a store obtained from {@link #acquireStore}.  The store is destroyed once it has
+   * been released as often as it was acquired.
+   */
+  public static void releaseStore(PortletContext context, BridgeRequestScopeStore store)
+  {
+    String attributeName = STORE_ATTRIBUTE_PREFIX + store.getClass().getName();
+    StoreHolder destroy = null;
+
+    synchronized (context)
+    {
+      StoreHolder holder = (StoreHolder) context.getAttribute(attributeName);
+      if (holder == null || holder.mStore != store)
+      {
+        return;
+      }
+      if (--holder.mReferences == 0)
+      {
+        context.removeAttribute(attributeName);
+        destroy = holder;
+      }
+    }
+
+    if (destroy != null)
+    {
+      destroy.mMonitor.unregister(context);
+      store.destroy();
+      if (destroy.mAsyncListener != null)
+      {
+        destroy.mAsyncListener.destroy();
+      }
+    }
+  }
+
+  private static String getStoreClassName(PortletConfig config)
+  {
+    String className = config.getInitParameter(BridgeRequestScopeStore.STORE_CLASS);
+    if (className == null)
+    {
+      className = config.getPortletContext().getInitParameter(BridgeRequestScopeStore.STORE_CLASS);
+    }
+    if (className == null)
+    {
+      className = getFromServicesPath(BridgeRequestScopeStore.STORE_SERVICE_CLASSPATH);
+    }
+    if (className == null || className.length() == 0)
+    {
+      className = HeapRequestScopeStore.class.getName();
+    }
+    return className.trim();
+  }
+
+  static BridgeRequestScopeStore createStore(String className)
+    throws BridgeException
+  {
+    try
+    {
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      Class<?> storeClass = (cl != null) ? cl.loadClass(className) : Class.forName(className);
+      return (BridgeRequestScopeStore) storeClass.newInstance();
+    }
+    catch (ClassNotFoundException cnfe)
+    {
+      throw new BridgeException("Unable to find request scope store class: " + className, cnfe);
+    }
+    catch (ClassCastException cce)
+    {
+      throw new BridgeException("Request scope store class " + className + " doesn't implement " +
+                                BridgeRequestScopeStore.class.getName(), cce);
+    }
+    catch (Exception e)
+    {
+      throw new BridgeException("Unable to instantiate request scope store class: " + className, e);
+    }
+  }
+
+  private static String getFromServicesPath(String resourceName)
+  {
+    // Check for a services definition
+    String result = null;
+    BufferedReader reader = null;
+    InputStream stream = null;
+    try
+    {
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      if (cl == null)
+      {
+        return null;
+      }
+
+      stream = cl.getResourceAsStream(resourceName);
+      if (stream != null)
+      {
+        // Deal with systems whose native encoding is possibly
+        // different from the way that the services entry was created
+        try
+        {
+          reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+          reader = new BufferedReader(new InputStreamReader(stream));
+        }
+        result = reader.readLine();
+        if (result != null)
+        {
+          result = result.trim();
+        }
+        reader.close();
+        reader = null;
+        stream = null;
+      }
+    }
+    catch (IOException e)
+    {
+    }
+    catch (SecurityException e)
+    {
+    }
+    finally
+    {
+      if (reader != null)
+      {
+        try
+        {
+          reader.close();
+          stream = null;
+        }
+        catch (Throwable t)
+        {
+          ;
+        }
+        reader = null;
+      }
+      if (stream != null)
+      {
+        try
+        {
+          stream.close();
+        }
+        catch (Throwable t)
+        {
+          ;
+        }
+        stream = null;
+      }
+    }
+    return result;
+  }
+
+  private static final class StoreHolder
+  {
+    private final BridgeRequestScopeStore mStore;
+    private final AsyncRemovalListener mAsyncListener;
+    private final RequestScopeStoreMonitor mMonitor;
+    private int mReferences = 0;
+
+    public StoreHolder(BridgeRequestScopeStore store, AsyncRemovalListener asyncListener)
+    {
+      mStore = store;
+      mAsyncListener = asyncListener;
+      mMonitor = new RequestScopeStoreMonitor(store, asyncListener);
+    }
+  }
+}
@@ -0,0 +1,1357 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the bridge's managed request scopes for an entire portlet application.  The value
+ * type is whatever representation of a scope the owning {@link BridgeRequestScopeStore}
+ * keeps -- the scope's <code>Map</code> itself or a handle to its serialized form.
+ * <p>
+ * The map is split into a fixed number of segments, each a recency ordered
+ * <code>LinkedHashMap</code> guarded by its own lock.  A scope key always hashes to the
+ * same segment so requests working with unrelated scopes rarely contend.  Each segment
+ * is bounded by its share of the overall capacity and evicts its own least recently used
+ * entry when that share is exceeded -- hence eviction is an approximation of a true LRU
+ * over the whole map.
+ * <p>
+ * Pure LRU lets a burst of scopes that are never rendered again (crawlers, abandoned tabs)
+ * push out scopes that are rendered over and over.  With the {@link EvictionPolicy#TINYLFU}
+ * policy each segment also keeps a {@link FrequencySketch} of how often its scopes were
+ * recently stored and looked up.  New scopes wait in a small window (LRU); one that leaves
+ * the window before it was ever looked up (rendered) is always admitted, otherwise it only
+ * displaces an established scope if it has been used more often since.
+ * <p>
+ * Every scope is also indexed by the portlet and the session it was created for.  This
+ * allows all the scopes of a session (when it goes away) or of a portlet (when it is
+ * destroyed) to be removed in time proportional to the number of scopes removed rather
+ * than the size of the map.
+ * <p>
+ * Each scope may carry a weight -- its (estimated) size in bytes.  If weight limits are set
+ * (see {@link #setWeightLimits}) adding a scope that takes the total weight of the map, or
+ * of the portlet that created it, over its limit evicts least recently used scopes (of
+ * that portlet) until it is back under.  Victims are taken from each segment in turn so,
+ * like the count bound, this approximates a true LRU.  The scope just added is only
+ * evicted if it alone exceeds the limit.
+ * <p>
+ * Quotas (see {@link #setQuotas}) limit the scopes of any one session and of any one portlet
+ * window -- the scopes one portlet created in one session.  Exceeding a quota evicts the
+ * oldest scope of the window (of the session: of its window holding the most scopes) so a
+ * user creating scopes at a high rate only ever evicts their own.
+ * <p>
+ * Scopes may also be given an idle timeout (time since last accessed) and/or a maximum
+ * age (time since created).  An expired scope is never returned; it is removed either
+ * when next looked up or by a periodic call to {@link #removeExpired}.
+ * <p>
+ * The {@link RemovalListener} is called whenever a scope leaves the map (eviction,
+ * expiry, replacement or explicit removal).  It is always called after the segment lock has been
+ * released so slow listeners never block other requests.
+ * <p>
+ * The map counts the scopes it evicts and expires and how long requests wait for segment
+ * locks.  These counts are cumulative and only approximate while the map is in use.
+ */
+public class ConcurrentRequestScopeMap<V>
+{
+  public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  // Don't split the map so thin that each segment only holds a handful of scopes
+  // as that would make the LRU approximation too coarse.
+  private static final int MIN_SEGMENT_CAPACITY = 4;
+
+  private final Segment<V>[]       mSegments;
+  private final int                mSegmentShift;
+  private final RemovalListener<V> mListener;
+  private final long               mIdleTimeout;
+  private final long               mMaxAge;
+  private volatile int             mMaxCapacity;
+
+  private long                     mMaxWeight = 0;
+  private long                     mMaxPortletWeight = 0;
+  private int                      mMaxSessionScopes = 0;
+  private int                      mMaxWindowScopes = 0;
+  private EvictionPolicy           mEvictionPolicy = EvictionPolicy.LRU;
+  private final AtomicLong         mWeight = new AtomicLong();
+  private final AtomicInteger      mEvictionCursor = new AtomicInteger();
+  private final AtomicLong         mEvictions = new AtomicLong();
+  private final AtomicLong         mExpirations = new AtomicLong();
+  private final AtomicLong         mSessionQuotaEvictions = new AtomicLong();
+  private final AtomicLong         mWindowQuotaEvictions = new AtomicLong();
+  private final ConcurrentHashMap<String, AtomicLong> mPortletWeights =
+    new ConcurrentHashMap<String, AtomicLong>();
+
+  // portletName -> sessionId -> ids of the scopes owned by that portlet/session
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, ScopeKeySet>> mIndex =
+    new ConcurrentHashMap<String, ConcurrentHashMap<String, ScopeKeySet>>();
+
+  /**
+   * How a full segment chooses the scope to evict.
+   */
+  public enum EvictionPolicy
+  {
+    /**
+     * Evicts the least recently used scope.
+     */
+    LRU,
+
+    /**
+     * New scopes enter a small window; once it's full its least recently used scope is only
+     * admitted in place of the least recently used scope of the rest if it has been used
+     * more often (recently).
+     */
+    TINYLFU
+  }
+
+  /**
+   * Called when a scope is removed from the map.
+   */
+  public interface RemovalListener<V>
+  {
+    public void scopeRemoved(ScopeKey key, V scope);
+  }
+
+  public ConcurrentRequestScopeMap(int maxCapacity, int concurrencyLevel,
+                                   RemovalListener<V> listener)
+  {
+    this(maxCapacity, concurrencyLevel, 0, 0, listener);
+  }
+
+  /**
+   * @param idleTimeout
+   *          milliseconds a scope may go unaccessed before it expires or 0 for no limit
+   * @param maxAge
+   *          milliseconds a scope may exist before it expires or 0 for no limit
+   */
+  @SuppressWarnings("unchecked")
+  public ConcurrentRequestScopeMap(int maxCapacity, int concurrencyLevel, long idleTimeout,
+                                   long maxAge, RemovalListener<V> listener)
+  {
+    if (maxCapacity <= 0)
+    {
+      throw new IllegalArgumentException("maxCapacity must be positive: " + maxCapacity);
+    }
+
+    if (concurrencyLevel <= 0)
+    {
+      concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+    }
+
+    // number of segments is the largest power of two that satisfies both the
+    // requested concurrency and the minimum segment capacity
+    int maxSegments = Math.max(1, maxCapacity / MIN_SEGMENT_CAPACITY);
+    int shift = 0;
+    int segments = 1;
+    while (segments < concurrencyLevel && (segments << 1) <= maxSegments)
+    {
+      segments <<= 1;
+      shift++;
+    }
+
+    mSegmentShift = 32 - shift;
+    mSegments = new Segment[segments];
+    mMaxCapacity = maxCapacity;
+
+    for (int i = 0; i < segments; i++)
+    {
+      mSegments[i] = new Segment<V>(segmentCapacity(maxCapacity, i));
+    }
+
+    mListener = listener;
+    mIdleTimeout = Math.max(0, idleTimeout);
+    mMaxAge = Math.max(0, maxAge);
+  }
+
+  /**
+   * Sets the weight limits.  Must be called before the map is used.
+   * 
+   * @param maxWeight
+   *          the most the scopes in the map may weigh in total or 0 for no limit
+   * @param maxPortletWeight
+   *          the most the scopes of any one portlet may weigh in total or 0 for no limit
+   */
+  public void setWeightLimits(long maxWeight, long maxPortletWeight)
+  {
+    mMaxWeight = Math.max(0, maxWeight);
+    mMaxPortletWeight = Math.max(0, maxPortletWeight);
+  }
+
+  /**
+   * Sets the quotas.  Must be called before the map is used.
+   * 
+   * @param maxSessionScopes
+   *          the most scopes any one session may hold or 0 for no limit
+   * @param maxWindowScopes
+   *          the most scopes any one portlet may hold in any one session or 0 for no limit
+   */
+  public void setQuotas(int maxSessionScopes, int maxWindowScopes)
+  {
+    mMaxSessionScopes = Math.max(0, maxSessionScopes);
+    mMaxWindowScopes = Math.max(0, maxWindowScopes);
+  }
+
+  /**
+   * Sets the eviction policy.  Must be called before the map is used.
+   */
+  public void setEvictionPolicy(EvictionPolicy policy)
+  {
+    mEvictionPolicy = policy;
+    if (policy == EvictionPolicy.TINYLFU)
+    {
+      for (int s = 0; s < mSegments.length; s++)
+      {
+        mSegments[s].setFrequencyAware(windowCapacity(mMaxCapacity));
+      }
+    }
+  }
+
+  public EvictionPolicy getEvictionPolicy()
+  {
+    return mEvictionPolicy;
+  }
+
+  /**
+   * @return the number of scopes evicted as their session exceeded its quota
+   */
+  public long getSessionQuotaEvictionCount()
+  {
+    return mSessionQuotaEvictions.get();
+  }
+
+  /**
+   * @return the number of scopes evicted as their window exceeded its quota
+   */
+  public long getWindowQuotaEvictionCount()
+  {
+    return mWindowQuotaEvictions.get();
+  }
+
+  /**
+   * @return true if the weight of the scopes is limited (and hence worth computing)
+   */
+  public boolean isWeighted()
+  {
+    return mMaxWeight > 0 || mMaxPortletWeight > 0;
+  }
+
+  /**
+   * @return the total weight of the scopes currently in the map
+   */
+  public long getWeight()
+  {
+    return mWeight.get();
+  }
+
+  /**
+   * @return the most scopes the map holds
+   */
+  public int getMaxCapacity()
+  {
+    return mMaxCapacity;
+  }
+
+  /**
+   * Changes the most scopes the map holds, evicting the least recently used ones if it now
+   * holds too many.  As each segment must hold at least one scope the capacity can't be
+   * less than the number of segments.
+   */
+  public void setMaxCapacity(int maxCapacity)
+  {
+    if (maxCapacity <= 0)
+    {
+      throw new IllegalArgumentException("maxCapacity must be positive: " + maxCapacity);
+    }
+    maxCapacity = Math.max(maxCapacity, mSegments.length);
+    mMaxCapacity = maxCapacity;
+
+    List<ScopeEntry<V>> evicted = new ArrayList<ScopeEntry<V>>();
+    for (int s = 0; s < mSegments.length; s++)
+    {
+      Segment<V> segment = mSegments[s];
+      segment.lock();
+      try
+      {
+        segment.setMaxCapacity(segmentCapacity(maxCapacity, s), windowCapacity(maxCapacity));
+        Iterator<ScopeEntry<V>> i = segment.iterator();
+        while (segment.size() > segment.mMaxCapacity)
+        {
+          ScopeEntry<V> entry = i.next();
+          i.remove();
+          addWeight(entry, -1);
+          evicted.add(entry);
+        }
+      }
+      finally
+      {
+        segment.unlock();
+      }
+
+      // notify segment by segment outside of the lock
+      for (ScopeEntry<V> entry : evicted)
+      {
+        removed(entry, false);
+      }
+      mEvictions.addAndGet(evicted.size());
+      evicted.clear();
+    }
+  }
+
+  /**
+   * @return the number of scopes evicted to make room for others
+   */
+  public long getEvictionCount()
+  {
+    return mEvictions.get();
+  }
+
+  /**
+   * @return the number of scopes removed because they expired
+   */
+  public long getExpirationCount()
+  {
+    return mExpirations.get();
+  }
+
+  /**
+   * @return the number of times a segment lock was taken only after waiting for it
+   */
+  public long getContendedLockCount()
+  {
+    long count = 0;
+    for (int s = 0; s < mSegments.length; s++)
+    {
+      count += mSegments[s].mContended;
+    }
+    return count;
+  }
+
+  /**
+   * @return the total nanoseconds spent waiting for segment locks
+   */
+  public long getLockWaitTime()
+  {
+    long time = 0;
+    for (int s = 0; s < mSegments.length; s++)
+    {
+      time += mSegments[s].mWaitTime;
+    }
+    return time;
+  }
+
+  /**
+   * @return the names of the portlets that have (or have had) scopes in the map
+   */
+  public Set<String> getPortletNames()
+  {
+    return Collections.unmodifiableSet(mIndex.keySet());
+  }
+
+  /**
+   * @return true if scopes in this map ever expire
+   */
+  public boolean isExpiring()
+  {
+    return mIdleTimeout > 0 || mMaxAge > 0;
+  }
+
+  public V get(ScopeKey key)
+  {
+    if (key == null)
+    {
+      return null;
+    }
+
+    Segment<V> segment = segmentFor(key);
+    ScopeEntry<V> entry = null;
+    V scope = null;
+    boolean expired = false;
+    long now = isExpiring() ? System.currentTimeMillis() : 0;
+    segment.lock();
+    try
+    {
+      entry = segment.get(key);
+      if (entry != null)
+      {
+        if (isExpired(entry, now))
+        {
+          segment.remove(key);
+          addWeight(entry, -1);
+          expired = true;
+        }
+        else
+        {
+          entry.mLastAccessed = now;
+          entry.mUsed = true;
+          scope = entry.mScope;
+        }
+      }
+    }
+    finally
+    {
+      segment.unlock();
+    }
+
+    if (expired)
+    {
+      mExpirations.incrementAndGet();
+      removed(entry, false);
+      return null;
+    }
+    return scope;
+  }
+
+  /**
+   * Adds (or replaces) the scope identified by <code>key</code>.
+   */
+  public void put(ScopeKey key, V scope)
+  {
+    put(key, scope, 0);
+  }
+
+  /**
+   * Adds (or replaces) the scope identified by <code>key</code>.
+   * 
+   * @param weight
+   *          the scope's size in bytes
+   */
+  public void put(ScopeKey key, V scope, long weight)
+  {
+    long now = isExpiring() ? System.currentTimeMillis() : 0;
+    ScopeEntry<V> entry = new ScopeEntry<V>(key, scope, now, weight);
+    Segment<V> segment = segmentFor(key);
+    ScopeEntry<V> replaced = null;
+    ScopeEntry<V> evicted = null;
+
+    ScopeKeySet ids = addToIndex(entry);
+
+    segment.lock();
+    try
+    {
+      replaced = segment.put(key, entry);
+      addWeight(entry, 1);
+      if (replaced != null)
+      {
+        addWeight(replaced, -1);
+      }
+      evicted = segment.evict();
+      if (evicted != null)
+      {
+        addWeight(evicted, -1);
+      }
+    }
+    finally
+    {
+      segment.unlock();
+    }
+
+    // update the index and notify outside of the lock
+    if (replaced != null && replaced.mScope != scope)
+    {
+      removed(replaced, true);
+    }
+    if (evicted != null)
+    {
+      mEvictions.incrementAndGet();
+      removed(evicted, false);
+    }
+
+    // If this session/portlet was removed while we were adding the scope
+    // the removal may have missed it -- so remove it ourselves
+    boolean detached;
+    synchronized (ids)
+    {
+      detached = ids.mDetached && ids.contains(key);
+    }
+    if (detached)
+    {
+      ScopeEntry<V> removed = removeEntry(key);
+      if (removed != null)
+      {
+        fireRemoved(removed);
+      }
+      return;
+    }
+
+    if (mMaxWindowScopes > 0)
+    {
+      enforceWindowQuota(entry, ids);
+    }
+    if (mMaxSessionScopes > 0 && entry.mKey.getSessionId() != null)
+    {
+      enforceSessionQuota(entry);
+    }
+    if (weight > 0)
+    {
+      enforceWeightLimits(entry);
+    }
+  }
+
+  /**
+   * Replaces the value of an existing scope without notifying the listener.  Succeeds only
+   * if the scope is currently mapped to <code>expected</code>.
+   * 
+   * @return true if the value was replaced
+   */
+  public boolean replace(ScopeKey key, V expected, V scope)
+  {
+    return replace(key, expected, scope, 0);
+  }
+
+  /**
+   * Replaces the value (and weight) of an existing scope without notifying the listener.
+   * Succeeds only if the scope is currently mapped to <code>expected</code>.
+   * 
+   * @return true if the value was replaced
+   */
+  public boolean replace(ScopeKey key, V expected, V scope, long weight)
+  {
+    ScopeEntry<V> entry = null;
+    Segment<V> segment = segmentFor(key);
+    segment.lock();
+    try
+    {
+      entry = segment.peek(key);
+      if (entry == null || entry.mScope != expected)
+      {
+        return false;
+      }
+      // updated in place -- an update neither renews nor touches the scope so
+      // it keeps its place in the eviction order
+      addWeight(entry, -1);
+      entry.mScope = scope;
+      entry.mWeight = weight;
+      addWeight(entry, 1);
+    }
+    finally
+    {
+      segment.unlock();
+    }
+
+    if (weight > 0)
+    {
+      enforceWeightLimits(entry);
+    }
+    return true;
+  }
+
+  public V remove(ScopeKey key)
+  {
+    if (key == null)
+    {
+      return null;
+    }
+
+    ScopeEntry<V> removed = removeEntry(key);
+    if (removed == null)
+    {
+      return null;
+    }
+
+    removed(removed, false);
+    return removed.mScope;
+  }
+
+  /**
+   * Removes all the scopes created by the given portlet in the given session.
+   */
+  public void removeSessionScopes(String portletName, String sessionId)
+  {
+    ConcurrentHashMap<String, ScopeKeySet> sessions = mIndex.get(portletName);
+    if (sessions == null)
+    {
+      return;
+    }
+
+    ScopeKeySet ids = sessions.remove(sessionId);
+    if (ids != null)
+    {
+      removeAll(ids);
+    }
+  }
+
+  /**
+   * Removes all the scopes created by the given portlet regardless of session.
+   */
+  public void removePortletScopes(String portletName)
+  {
+    ConcurrentHashMap<String, ScopeKeySet> sessions = mIndex.remove(portletName);
+    if (sessions == null)
+    {
+      return;
+    }
+
+    for (ScopeKeySet ids : sessions.values())
+    {
+      removeAll(ids);
+    }
+  }
+
+  /**
+   * Removes every expired scope.  Intended to be called periodically (off the request
+   * path) so scopes that are never looked up again don't linger until evicted.
+   * 
+   * @return the number of scopes removed
+   */
+  public int removeExpired()
+  {
+    if (!isExpiring())
+    {
+      return 0;
+    }
+
+    long now = System.currentTimeMillis();
+    int count = 0;
+    List<ScopeEntry<V>> expired = new ArrayList<ScopeEntry<V>>();
+    for (int s = 0; s < mSegments.length; s++)
+    {
+      Segment<V> segment = mSegments[s];
+      segment.lock();
+      try
+      {
+        Iterator<ScopeEntry<V>> i = segment.iterator();
+        while (i.hasNext())
+        {
+          ScopeEntry<V> entry = i.next();
+          if (isExpired(entry, now))
+          {
+            i.remove();
+            addWeight(entry, -1);
+            expired.add(entry);
+          }
+          else if (mMaxAge == 0 && mEvictionPolicy == EvictionPolicy.LRU)
+          {
+            // recency ordered -- the rest were accessed more recently
+            break;
+          }
+        }
+      }
+      finally
+      {
+        segment.unlock();
+      }
+
+      // notify segment by segment outside of the lock
+      for (ScopeEntry<V> entry : expired)
+      {
+        removed(entry, false);
+      }
+      count += expired.size();
+      expired.clear();
+    }
+    mExpirations.addAndGet(count);
+    return count;
+  }
+
+  public int size()
+  {
+    int size = 0;
+    for (int s = 0; s < mSegments.length; s++)
+    {
+      Segment<V> segment = mSegments[s];
+      segment.lock();
+      try
+      {
+        size += segment.size();
+      }
+      finally
+      {
+        segment.unlock();
+      }
+    }
+    return size;
+  }
+
+  private Segment<V> segmentFor(ScopeKey key)
+  {
+    if (mSegments.length == 1)
+    {
+      return mSegments[0];
+    }
+    return mSegments[hash(key.hashCode()) >>> mSegmentShift];
+  }
+
+  private boolean isExpired(ScopeEntry<V> entry, long now)
+  {
+    return (mIdleTimeout > 0 && now - entry.mLastAccessed >= mIdleTimeout) ||
+      (mMaxAge > 0 && now - entry.mCreated >= mMaxAge);
+  }
+
+  private ScopeEntry<V> removeEntry(ScopeKey key)
+  {
+    Segment<V> segment = segmentFor(key);
+    segment.lock();
+    try
+    {
+      ScopeEntry<V> removed = segment.remove(key);
+      if (removed != null)
+      {
+        addWeight(removed, -1);
+      }
+      return removed;
+    }
+    finally
+    {
+      segment.unlock();
+    }
+  }
+
+  /*
+   * Called with the entry's segment lock held.
+   */
+  private void addWeight(ScopeEntry<V> entry, int sign)
+  {
+    if (entry.mWeight == 0)
+    {
+      return;
+    }
+
+    long delta = sign * entry.mWeight;
+    mWeight.addAndGet(delta);
+
+    AtomicLong portletWeight = mPortletWeights.get(entry.mKey.getPortletName());
+    if (portletWeight == null)
+    {
+      portletWeight = new AtomicLong();
+      AtomicLong existing = mPortletWeights.putIfAbsent(entry.mKey.getPortletName(), portletWeight);
+      if (existing != null)
+      {
+        portletWeight = existing;
+      }
+    }
+    portletWeight.addAndGet(delta);
+  }
+
+  private void enforceWeightLimits(ScopeEntry<V> added)
+  {
+    if (mMaxPortletWeight > 0)
+    {
+      AtomicLong portletWeight = mPortletWeights.get(added.mKey.getPortletName());
+      while (portletWeight != null && portletWeight.get() > mMaxPortletWeight)
+      {
+        if (!evictOne(added.mKey.getPortletName(), added))
+        {
+          break;
+        }
+      }
+    }
+
+    if (mMaxWeight > 0)
+    {
+      while (mWeight.get() > mMaxWeight)
+      {
+        if (!evictOne(null, added))
+        {
+          break;
+        }
+      }
+    }
+  }
+
+  /*
+   * Evicts the oldest scopes of the window -- other than the one just added --
+   * until it is back within its quota.
+   */
+  private void enforceWindowQuota(ScopeEntry<V> added, ScopeKeySet ids)
+  {
+    while (true)
+    {
+      ScopeKey victim = null;
+      synchronized (ids)
+      {
+        if (ids.size() > mMaxWindowScopes)
+        {
+          victim = ids.getOldest(added.mKey);
+        }
+      }
+      if (victim == null)
+      {
+        return;
+      }
+      if (evictQuota(victim, ids))
+      {
+        mWindowQuotaEvictions.incrementAndGet();
+      }
+    }
+  }
+
+  /*
+   * Evicts the oldest scope of the session's fullest window -- other than
+   * the one just added -- until the session is back within its quota.
+   */
+  private void enforceSessionQuota(ScopeEntry<V> added)
+  {
+    String sessionId = added.mKey.getSessionId();
+    while (true)
+    {
+      int total = 0;
+      int most = 0;
+      ScopeKeySet fullest = null;
+      ScopeKey victim = null;
+      for (ConcurrentHashMap<String, ScopeKeySet> sessions : mIndex.values())
+      {
+        ScopeKeySet ids = sessions.get(sessionId);
+        if (ids == null)
+        {
+          continue;
+        }
+        synchronized (ids)
+        {
+          int size = ids.size();
+          total += size;
+          if (size > most)
+          {
+            ScopeKey oldest = ids.getOldest(added.mKey);
+            if (oldest != null)
+            {
+              most = size;
+              fullest = ids;
+              victim = oldest;
+            }
+          }
+        }
+      }
+
+      if (total <= mMaxSessionScopes || victim == null)
+      {
+        return;
+      }
+      if (evictQuota(victim, fullest))
+      {
+        mSessionQuotaEvictions.incrementAndGet();
+      }
+    }
+  }
+
+  /*
+   * @return true if the scope was evicted, false if it had already gone
+   */
+  private boolean evictQuota(ScopeKey victim, ScopeKeySet ids)
+  {
+    ScopeEntry<V> removed = removeEntry(victim);
+    if (removed == null)
+    {
+      // already removed by someone else who'll also drop it from the index
+      // -- but make sure we don't pick it again
+      synchronized (ids)
+      {
+        ids.remove(victim);
+      }
+      return false;
+    }
+    removed(removed, false);
+    return true;
+  }
+
+  /*
+   * Evicts the least recently used scope (of the portlet if portletName isn't null) from
+   * the next segment that has one -- other than the scope just added.  Failing that evicts
+   * the scope just added.
+   * 
+   * @return false if there was nothing left to evict
+   */
+  private boolean evictOne(String portletName, ScopeEntry<V> added)
+  {
+    int start = mEvictionCursor.getAndIncrement();
+    for (int n = 0; n < mSegments.length; n++)
+    {
+      Segment<V> segment = mSegments[(start + n) & (mSegments.length - 1)];
+      ScopeEntry<V> victim = null;
+      segment.lock();
+      try
+      {
+        Iterator<ScopeEntry<V>> i = segment.iterator();
+        while (i.hasNext())
+        {
+          ScopeEntry<V> entry = i.next();
+          if (entry != added && entry.mWeight > 0 &&
+              (portletName == null || portletName.equals(entry.mKey.getPortletName())))
+          {
+            i.remove();
+            addWeight(entry, -1);
+            victim = entry;
+            break;
+          }
+        }
+      }
+      finally
+      {
+        segment.unlock();
+      }
+
+      if (victim != null)
+      {
+        mEvictions.incrementAndGet();
+        removed(victim, false);
+        return true;
+      }
+    }
+
+    // The scope just added is all that's left -- it alone exceeds the limit
+    Segment<V> segment = segmentFor(added.mKey);
+    boolean evicted = false;
+    segment.lock();
+    try
+    {
+      if (segment.peek(added.mKey) == added)
+      {
+        segment.remove(added.mKey);
+        addWeight(added, -1);
+        evicted = true;
+      }
+    }
+    finally
+    {
+      segment.unlock();
+    }
+
+    if (evicted)
+    {
+      mEvictions.incrementAndGet();
+      removed(added, false);
+    }
+    return false;
+  }
+
+  /*
+   * Removes the scopes in a set that has already been detached from the index.
+   */
+  private void removeAll(ScopeKeySet ids)
+  {
+    List<ScopeKey> keys = null;
+    synchronized (ids)
+    {
+      // mark it so concurrent puts (for this session) allocate a new set
+      ids.mDetached = true;
+      keys = new ArrayList<ScopeKey>(ids);
+    }
+
+    for (ScopeKey key : keys)
+    {
+      ScopeEntry<V> removed = removeEntry(key);
+      if (removed != null)
+      {
+        fireRemoved(removed);
+      }
+    }
+  }
+
+  private void removed(ScopeEntry<V> entry, boolean replaced)
+  {
+    // a replaced entry shares its id (and hence its index slot) with the
+    // entry that replaced it
+    if (!replaced)
+    {
+      removeFromIndex(entry);
+    }
+    fireRemoved(entry);
+  }
+
+  private ScopeKeySet addToIndex(ScopeEntry<V> entry)
+  {
+    while (true)
+    {
+      ConcurrentHashMap<String, ScopeKeySet> sessions = mIndex.get(entry.mKey.getPortletName());
+      if (sessions == null)
+      {
+        sessions = new ConcurrentHashMap<String, ScopeKeySet>();
+        ConcurrentHashMap<String, ScopeKeySet> existing = 
+          mIndex.putIfAbsent(entry.mKey.getPortletName(), sessions);
+        if (existing != null)
+        {
+          sessions = existing;
+        }
+      }
+
+      ScopeKeySet ids = sessions.get(entry.mKey.getSessionId());
+      if (ids == null)
+      {
+        ids = new ScopeKeySet();
+        ScopeKeySet existing = sessions.putIfAbsent(entry.mKey.getSessionId(), ids);
+        if (existing != null)
+        {
+          ids = existing;
+        }
+      }
+
+      synchronized (ids)
+      {
+        if (!ids.mDetached)
+        {
+          ids.add(entry.mKey);
+          return ids;
+        }
+      }
+      // raced with the removal of this set -- try again with a fresh one
+    }
+  }
+
+  private void removeFromIndex(ScopeEntry<V> entry)
+  {
+    ConcurrentHashMap<String, ScopeKeySet> sessions = mIndex.get(entry.mKey.getPortletName());
+    if (sessions == null)
+    {
+      return;
+    }
+
+    ScopeKeySet ids = sessions.get(entry.mKey.getSessionId());
+    if (ids == null)
+    {
+      return;
+    }
+
+    synchronized (ids)
+    {
+      ids.remove(entry.mKey);
+      if (ids.isEmpty() && !ids.mDetached)
+      {
+        ids.mDetached = true;
+        sessions.remove(entry.mKey.getSessionId(), ids);
+      }
+    }
+  }
+
+  private void fireRemoved(ScopeEntry<V> entry)
+  {
+    if (mListener != null)
+    {
+      mListener.scopeRemoved(entry.mKey, entry.mScope);
+    }
+  }
+
+  /*
+   * About 1% of the whole map's capacity, spread over the segments -- the
+   * window only has to hold the scopes of the latest actions until their first
+   * render (those that leave it unrendered are admitted regardless).
+   */
+  private int windowCapacity(int maxCapacity)
+  {
+    return Math.max(1, (maxCapacity / 100 + mSegments.length - 1) / mSegments.length);
+  }
+
+  /*
+   * Spreads the capacity so the segments add up to exactly maxCapacity.
+   */
+  private int segmentCapacity(int maxCapacity, int segment)
+  {
+    int base = maxCapacity / mSegments.length;
+    int remainder = maxCapacity % mSegments.length;
+    return segment < remainder ? base + 1 : base;
+  }
+
+  /*
+   * Spread the bits of the hashCode so that keys which differ only in their
+   * low order bits (e.g. our generated ids) don't all land in the same segment.
+   */
+  private static int hash(int h)
+  {
+    h += (h << 15) ^ 0xffffcd7d;
+    h ^= (h >>> 10);
+    h += (h << 3);
+    h ^= (h >>> 6);
+    h += (h << 2) + (h << 14);
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Segment<V>
+    extends ReentrantLock
+  {
+    private static final long serialVersionUID = -2876374451203467264L;
+
+    // guarded by the lock
+    private int mMaxCapacity;
+    private final LinkedHashMap<ScopeKey, ScopeEntry<V>> mScopes;
+    // only if frequency aware: new scopes wait here before being admitted to mScopes
+    private LinkedHashMap<ScopeKey, ScopeEntry<V>> mWindow = null;
+    private int mWindowCapacity = 0;
+    private FrequencySketch mSketch = null;
+
+    // only written while holding the lock
+    private volatile long mContended = 0;
+    private volatile long mWaitTime = 0;
+
+    public Segment(int maxCapacity)
+    {
+      mMaxCapacity = maxCapacity;
+      // kept in recency order (see touch) so the eldest entry is the least recently used one
+      mScopes = new LinkedHashMap<ScopeKey, ScopeEntry<V>>(maxCapacity + 1, 1.0f);
+    }
+
+    /*
+     * Only times the wait when the lock is actually contended so the
+     * uncontended case costs no more than before.
+     */
+    @Override
+    public void lock()
+    {
+      if (tryLock())
+      {
+        return;
+      }
+
+      long start = System.nanoTime();
+      super.lock();
+      mWaitTime += System.nanoTime() - start;
+      mContended++;
+    }
+
+    public void setFrequencyAware(int windowCapacity)
+    {
+      mWindowCapacity = windowCapacity;
+      mWindow = new LinkedHashMap<ScopeKey, ScopeEntry<V>>(16, 0.75f);
+      mSketch = new FrequencySketch(mMaxCapacity);
+    }
+
+    public void setMaxCapacity(int maxCapacity, int windowCapacity)
+    {
+      mMaxCapacity = maxCapacity;
+      mWindowCapacity = windowCapacity;
+      if (mSketch != null)
+      {
+        mSketch.ensureCapacity(maxCapacity);
+      }
+    }
+
+    /*
+     * Looks up an entry, making it the most recently used one and, if frequency aware,
+     * counting the use.
+     */
+    public ScopeEntry<V> get(ScopeKey key)
+    {
+      ScopeEntry<V> entry = touch(mScopes, key);
+      if (mWindow == null)
+      {
+        return entry;
+      }
+
+      if (entry == null)
+      {
+        entry = touch(mWindow, key);
+      }
+      if (entry != null)
+      {
+        mSketch.increment(key);
+      }
+      return entry;
+    }
+
+    /*
+     * Looks up an entry without affecting its recency or frequency.
+     */
+    public ScopeEntry<V> peek(ScopeKey key)
+    {
+      ScopeEntry<V> entry = mScopes.get(key);
+      if (entry == null && mWindow != null)
+      {
+        entry = mWindow.get(key);
+      }
+      return entry;
+    }
+
+    /*
+     * Adds the entry as the most recently used one.
+     * 
+     * @return the entry replaced
+     */
+    public ScopeEntry<V> put(ScopeKey key, ScopeEntry<V> entry)
+    {
+      if (mWindow == null || mScopes.containsKey(key))
+      {
+        ScopeEntry<V> replaced = mScopes.remove(key);
+        mScopes.put(key, entry);
+        return replaced;
+      }
+
+      mSketch.increment(key);
+      ScopeEntry<V> replaced = mWindow.remove(key);
+      mWindow.put(key, entry);
+      return replaced;
+    }
+
+    public ScopeEntry<V> remove(ScopeKey key)
+    {
+      ScopeEntry<V> entry = mScopes.remove(key);
+      if (entry == null && mWindow != null)
+      {
+        entry = mWindow.remove(key);
+      }
+      return entry;
+    }
+
+    public int size()
+    {
+      return mWindow == null ? mScopes.size() : mScopes.size() + mWindow.size();
+    }
+
+    /*
+     * Called after adding an entry to make room for it.  Least recently used first, except
+     * that if frequency aware the eldest entry of the window -- unless it has never been
+     * looked up, i.e. is still waiting for its first render -- is only admitted in place of
+     * the least recently used one if it has been used more often.
+     *
+     * @return the entry evicted or null if there was room
+     */
+    public ScopeEntry<V> evict()
+    {
+      if (mWindow != null && mWindow.size() > mWindowCapacity)
+      {
+        ScopeEntry<V> candidate = removeEldest(mWindow);
+        if (size() < mMaxCapacity)
+        {
+          mScopes.put(candidate.mKey, candidate);
+          return null;
+        }
+
+        ScopeEntry<V> victim = mScopes.isEmpty() ? null : mScopes.values().iterator().next();
+        if (victim == null || (candidate.mUsed &&
+            mSketch.frequency(candidate.mKey) <= mSketch.frequency(victim.mKey)))
+        {
+          return candidate;
+        }
+        mScopes.remove(victim.mKey);
+        mScopes.put(candidate.mKey, candidate);
+        return victim;
+      }
+
+      if (size() > mMaxCapacity)
+      {
+        return removeEldest(mScopes.isEmpty() ? mWindow : mScopes);
+      }
+      return null;
+    }
+
+    /*
+     * @return the entries in the order they'd be evicted -- the window's last
+     */
+    public Iterator<ScopeEntry<V>> iterator()
+    {
+      final Iterator<ScopeEntry<V>> scopes = mScopes.values().iterator();
+      if (mWindow == null)
+      {
+        return scopes;
+      }
+
+      final Iterator<ScopeEntry<V>> window = mWindow.values().iterator();
+      return new Iterator<ScopeEntry<V>>()
+        {
+          private Iterator<ScopeEntry<V>> mCurrent = scopes;
+
+          public boolean hasNext()
+          {
+            if (!mCurrent.hasNext() && mCurrent == scopes)
+            {
+              mCurrent = window;
+            }
+            return mCurrent.hasNext();
+          }
+
+          public ScopeEntry<V> next()
+          {
+            hasNext();
+            return mCurrent.next();
+          }
+
+          public void remove()
+          {
+            mCurrent.remove();
+          }
+        };
+    }
+
+    /*
+     * The maps are insertion ordered rather than access ordered so entries can be
+     * peeked at (and updated) without being reordered -- using one re-adds it instead.
+     */
+    private static <T> ScopeEntry<T> touch(LinkedHashMap<ScopeKey, ScopeEntry<T>> scopes,
+                                           ScopeKey key)
+    {
+      ScopeEntry<T> entry = scopes.remove(key);
+      if (entry != null)
+      {
+        scopes.put(key, entry);
+      }
+      return entry;
+    }
+
+    private static <T> ScopeEntry<T> removeEldest(LinkedHashMap<ScopeKey, ScopeEntry<T>> scopes)
+    {
+      Iterator<ScopeEntry<T>> i = scopes.values().iterator();
+      ScopeEntry<T> eldest = i.next();
+      i.remove();
+      return eldest;
+    }
+  }
+
+  private static final class ScopeEntry<V>
+  {
+    private final ScopeKey mKey;
+    private final long mCreated;
+    // guarded by the segment lock -- the scope and weight only change while mapped
+    private V mScope;
+    private long mWeight;
+    private long mLastAccessed;
+    // looked up since it was stored
+    private boolean mUsed = false;
+
+    public ScopeEntry(ScopeKey key, V scope, long created, long weight)
+    {
+      mKey = key;
+      mScope = scope;
+      mCreated = created;
+      mLastAccessed = created;
+      mWeight = weight;
+    }
+  }
+
+  /*
+   * Keys of the scopes belonging to one portlet/session pair.  Guarded by its own
+   * monitor.  Once detached from the index it is never added to again.
+   */
+  private static final class ScopeKeySet
+    extends LinkedHashSet<ScopeKey>
+  {
+    private static final long serialVersionUID = 6384910541273362417L;
+
+    private boolean mDetached = false;
+
+    /*
+     * @return the first (i.e. oldest) key other than the excluded one
+     */
+    public ScopeKey getOldest(ScopeKey excluded)
+    {
+      for (ScopeKey key : this)
+      {
+        if (!key.equals(excluded))
+        {
+          return key;
+        }
+      }
+      return null;
+    }
+  }
+}
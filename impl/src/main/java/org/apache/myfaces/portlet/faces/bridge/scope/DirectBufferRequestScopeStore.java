@@ -0,0 +1,102 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link BridgeRequestScopeStore} that keeps each scope serialized in its own direct
+ * (off-heap) <code>ByteBuffer</code>.  Only a small handle per scope (plus any attributes
+ * that can't be serialized) remains on the Java heap.
+ * <p>
+ * The memory is returned when the handle is garbage collected.  The total amount is
+ * bounded by the VM's direct memory limit (<code>-XX:MaxDirectMemorySize</code>); should
+ * it be exhausted scopes are kept on the heap instead.
+ */
+public class DirectBufferRequestScopeStore
+  extends SerializingRequestScopeStore
+{
+  private final AtomicLong mAllocatedBytes = new AtomicLong();
+  private volatile boolean mExhaustedLogged = false;
+
+  /**
+   * @return the number of bytes currently held in direct buffers
+   */
+  public long getAllocatedBytes()
+  {
+    return mAllocatedBytes.get();
+  }
+
+  @Override
+  protected StoredBytes store(byte[] data)
+  {
+    ByteBuffer buffer = null;
+    try
+    {
+      buffer = ByteBuffer.allocateDirect(data.length);
+    }
+    catch (OutOfMemoryError e)
+    {
+      // direct memory is exhausted -- not the heap
+      if (!mExhaustedLogged)
+      {
+        mExhaustedLogged = true;
+        getPortletContext().log("Direct memory exhausted -- keeping managed request scopes " +
+                                "on the heap");
+      }
+      return null;
+    }
+
+    buffer.put(data);
+    mAllocatedBytes.addAndGet(data.length);
+    return new DirectBytes(buffer);
+  }
+
+  private final class DirectBytes
+    extends StoredBytes
+  {
+    private ByteBuffer mBuffer;
+
+    public DirectBytes(ByteBuffer buffer)
+    {
+      mBuffer = buffer;
+    }
+
+    @Override
+    protected byte[] read()
+    {
+      // duplicate so concurrent readers don't share a position
+      ByteBuffer buffer = mBuffer.duplicate();
+      buffer.clear();
+      byte[] data = new byte[buffer.capacity()];
+      buffer.get(data);
+      return data;
+    }
+
+    @Override
+    protected void free()
+    {
+      mAllocatedBytes.addAndGet(-mBuffer.capacity());
+      // let the collector reclaim the native memory
+      mBuffer = null;
+    }
+  }
+}
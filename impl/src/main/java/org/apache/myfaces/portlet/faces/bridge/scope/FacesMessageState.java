@@ -0,0 +1,84 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.faces.application.FacesMessage;
+
+// TODO: Should we store these as attributes of the ViewTree??? It would
+// work as
+// everything is serializable. -- Issue is we need to implement a
+// PhaseListener to
+// to deal with this -- at the moment I prefer to isolate the Faces
+// extensions from this
+// detail and leave it all in this controller part.
+
+/**
+ * The Faces messages of an action saved in its managed request scope so they can be
+ * restored in the renders that follow.
+ */
+public final class FacesMessageState
+  implements Serializable
+{
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 8438070672451887050L;
+  // For saving and restoring FacesMessages
+  private Map<String, List<FacesMessage>> mMessages = new HashMap<String, List<FacesMessage>>(); // key=clientId;
+
+  // value=FacesMessages
+
+  public void addMessage(String clientId, FacesMessage message)
+  {
+    List<FacesMessage> list = mMessages.get(clientId);
+    if (list == null)
+    {
+      list = new ArrayList<FacesMessage>();
+      mMessages.put(clientId, list);
+    }
+    list.add(message);
+  }
+
+  public List<FacesMessage> getMessages(String clientId)
+  {
+    List<FacesMessage> list = mMessages.get(clientId);
+    if (list != null)
+    {
+      return list;
+    }
+    else
+    {
+      return Collections.emptyList();
+    }
+  }
+
+  public Set<String> getClientIds()
+  {
+    return mMessages.keySet();
+  }
+}
@@ -0,0 +1,152 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+/**
+ * Estimates how often each key has been seen recently.  A count-min sketch of 4-bit
+ * counters: each key increments one counter in each of four rows and its frequency is the
+ * smallest of them, so collisions can only overestimate it.  Once the sketch has counted
+ * ten times as many accesses as there are keys to track all counters are halved, so the
+ * estimate ages and keys that were popular long ago don't stay popular forever.
+ * <p>
+ * Not thread safe -- callers synchronize.
+ */
+final class FrequencySketch
+{
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int  MAX_COUNT = 15;
+
+  // 16 counters per long
+  private long[] mTable;
+  private int mCounterMask;
+  private int mSampleSize;
+  private int mSize;
+
+  public FrequencySketch(int capacity)
+  {
+    ensureCapacity(capacity);
+  }
+
+  /**
+   * Resizes the sketch to track about <code>capacity</code> keys.  Resizing forgets all
+   * counts.
+   */
+  public void ensureCapacity(int capacity)
+  {
+    int length = 8;
+    while (length < capacity)
+    {
+      length <<= 1;
+    }
+    if (mTable != null && mTable.length == length)
+    {
+      return;
+    }
+
+    mTable = new long[length];
+    mCounterMask = (length << 4) - 1;
+    mSampleSize = 10 * Math.max(1, capacity);
+    mSize = 0;
+  }
+
+  /**
+   * @return the estimated number of times the key was seen (at most 15)
+   */
+  public int frequency(Object key)
+  {
+    int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++)
+    {
+      frequency = Math.min(frequency, getCount(indexOf(hash, i)));
+    }
+    return frequency;
+  }
+
+  /**
+   * Counts another access to the key.
+   */
+  public void increment(Object key)
+  {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++)
+    {
+      added |= incrementCount(indexOf(hash, i));
+    }
+
+    if (added && ++mSize >= mSampleSize)
+    {
+      reset();
+    }
+  }
+
+  /*
+   * Halves every counter.
+   */
+  private void reset()
+  {
+    for (int i = 0; i < mTable.length; i++)
+    {
+      mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+    }
+    mSize >>>= 1;
+  }
+
+  private int getCount(int index)
+  {
+    return (int) ((mTable[index >>> 4] >>> ((index & 15) << 2)) & MAX_COUNT);
+  }
+
+  /*
+   * @return false if the counter was already saturated
+   */
+  private boolean incrementCount(int index)
+  {
+    int shift = (index & 15) << 2;
+    long mask = (long) MAX_COUNT << shift;
+    long word = mTable[index >>> 4];
+    if ((word & mask) == mask)
+    {
+      return false;
+    }
+    mTable[index >>> 4] = word + (1L << shift);
+    return true;
+  }
+
+  private int indexOf(int hash, int row)
+  {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & mCounterMask;
+  }
+
+  private static int spread(int h)
+  {
+    h ^= h >>> 17;
+    h *= 0xed5ad4bb;
+    h ^= h >>> 11;
+    h *= 0xac4c1b51;
+    return h ^ (h >>> 15);
+  }
+}
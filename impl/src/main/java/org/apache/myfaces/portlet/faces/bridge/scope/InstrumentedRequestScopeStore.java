@@ -0,0 +1,87 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.util.Set;
+
+/**
+ * Implemented by stores that can report how they are doing and be resized while in use.
+ * {@link RequestScopeStoreMonitor} exposes these through JMX.  Counts are cumulative since
+ * the store was initialized.
+ */
+public interface InstrumentedRequestScopeStore
+  extends BridgeRequestScopeStore
+{
+  /**
+   * @return the most scopes the store holds
+   */
+  public int getMaxScopes();
+
+  /**
+   * Changes the most scopes the store holds, evicting scopes if it now holds too many.
+   */
+  public void setMaxScopes(int maxScopes);
+
+  /**
+   * @return the number of scopes evicted to make room for others
+   */
+  public long getEvictionCount();
+
+  /**
+   * @return the number of scopes removed because they expired
+   */
+  public long getExpirationCount();
+
+  /**
+   * @return the number of scopes evicted as their session exceeded its quota
+   */
+  public long getSessionQuotaEvictionCount();
+
+  /**
+   * @return the number of scopes evicted as their portlet window exceeded its quota
+   */
+  public long getWindowQuotaEvictionCount();
+
+  /**
+   * @return the (estimated) bytes the scopes currently retain or -1 if scopes aren't weighed
+   */
+  public long getWeight();
+
+  /**
+   * @return the average number of attributes in the scopes stored so far
+   */
+  public double getAverageAttributeCount();
+
+  /**
+   * @return the number of times a request had to wait for a lock
+   */
+  public long getContendedLockCount();
+
+  /**
+   * @return the total nanoseconds requests spent waiting for locks
+   */
+  public long getLockWaitTime();
+
+  /**
+   * @return the names of the portlets that have (or have had) scopes in the store
+   */
+  public Set<String> getPortletNames();
+}
@@ -0,0 +1,101 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * A {@link ReplicationTransport} that delivers batches to the other stores in the same
+ * VM that joined the same group.  Intended for testing replication (and measuring its
+ * throughput) with several "nodes" -- portlet applications or stores created by a test --
+ * running in one process.
+ * <p>
+ * The group is named by the <code>PortletContext</code> init parameter
+ * <code>org.apache.myfaces.portlet.faces.REPLICATION_GROUP</code> (by default
+ * <code>"default"</code>).  Batches are delivered synchronously on the sending thread.
+ */
+public class LoopbackReplicationTransport
+  implements ReplicationTransport
+{
+  public static final String GROUP = "org.apache.myfaces.portlet.faces.REPLICATION_GROUP";
+
+  private static final ConcurrentHashMap<String, List<LoopbackReplicationTransport>> sGroups =
+    new ConcurrentHashMap<String, List<LoopbackReplicationTransport>>();
+
+  private String mGroup = null;
+  private Receiver mReceiver = null;
+
+  public void init(PortletContext context, Receiver receiver)
+    throws BridgeException
+  {
+    mGroup = context.getInitParameter(GROUP);
+    if (mGroup == null)
+    {
+      mGroup = "default";
+    }
+    mReceiver = receiver;
+
+    List<LoopbackReplicationTransport> members = sGroups.get(mGroup);
+    if (members == null)
+    {
+      members = new CopyOnWriteArrayList<LoopbackReplicationTransport>();
+      List<LoopbackReplicationTransport> existing = sGroups.putIfAbsent(mGroup, members);
+      if (existing != null)
+      {
+        members = existing;
+      }
+    }
+    members.add(this);
+  }
+
+  public void send(byte[] batch)
+    throws IOException
+  {
+    List<LoopbackReplicationTransport> members = sGroups.get(mGroup);
+    if (members == null)
+    {
+      return;
+    }
+
+    for (LoopbackReplicationTransport member : members)
+    {
+      if (member != this)
+      {
+        member.mReceiver.receive(batch);
+      }
+    }
+  }
+
+  public void destroy()
+  {
+    List<LoopbackReplicationTransport> members = sGroups.get(mGroup);
+    if (members != null)
+    {
+      members.remove(this);
+      // Note: an empty group is left in place; its tiny and may be rejoined
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * A {@link BridgeRequestScopeStore} that keeps scopes serialized in a memory-mapped file.
+ * The file is carved up by a simple first-fit allocator; freed regions are coalesced with
+ * their neighbors.  When the file is full, scopes are kept on the heap instead.
+ * <p>
+ * Recognizes the following <code>PortletContext</code> init parameters:
+ * <ul>
+ * <li><code>org.apache.myfaces.portlet.faces.RequestScopeStoreFile</code>: the file to map.
+ * Defaults to a temporary file in the application's temporary directory which is deleted
+ * when the store is destroyed (on exit where the platform won't delete a mapped file).</li>
+ * <li><code>org.apache.myfaces.portlet.faces.RequestScopeStoreFileSize</code>: the size of
+ * the mapping in bytes.  Defaults to 64MB; at most 2GB.</li>
+ * </ul>
+ */
+public class MappedFileRequestScopeStore
+  extends SerializingRequestScopeStore
+{
+  public static final String STORE_FILE = "org.apache.myfaces.portlet.faces.RequestScopeStoreFile";
+  public static final String STORE_FILE_SIZE = "org.apache.myfaces.portlet.faces.RequestScopeStoreFileSize";
+
+  private static final int DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+
+  // regions are handed out in multiples of this to limit fragmentation
+  private static final int ALIGNMENT = 64;
+
+  private File             mFile = null;
+  private boolean          mDeleteOnDestroy = false;
+  private RandomAccessFile mRandomAccessFile = null;
+  private MappedByteBuffer mBuffer = null;
+
+  // offset -> length of the free regions.  Guarded by itself.
+  private final TreeMap<Integer, Integer> mFreeRegions = new TreeMap<Integer, Integer>();
+  private volatile boolean mFullLogged = false;
+
+  @Override
+  public void init(PortletContext context, RemovalListener listener)
+    throws BridgeException
+  {
+    super.init(context, listener);
+
+    int size = getIntInitParameter(STORE_FILE_SIZE, DEFAULT_FILE_SIZE);
+    size -= size % ALIGNMENT;
+    if (size <= 0)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + STORE_FILE_SIZE);
+    }
+
+    try
+    {
+      String fileName = context.getInitParameter(STORE_FILE);
+      if (fileName != null)
+      {
+        mFile = new File(fileName);
+      }
+      else
+      {
+        Object tempDir = context.getAttribute("javax.servlet.context.tempdir");
+        mFile = File.createTempFile("bridgeRequestScopes", ".dat",
+                                    tempDir instanceof File ? (File) tempDir : null);
+        mDeleteOnDestroy = true;
+      }
+
+      mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+      mRandomAccessFile.setLength(size);
+      mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    catch (IOException e)
+    {
+      throw new BridgeException("Unable to map managed request scope file: " + mFile, e);
+    }
+
+    mFreeRegions.put(Integer.valueOf(0), Integer.valueOf(size));
+  }
+
+  @Override
+  public void destroy()
+  {
+    super.destroy();
+    try
+    {
+      // Note: the mapping itself goes away when the buffer is collected
+      mRandomAccessFile.close();
+    }
+    catch (IOException e)
+    {
+      ; // nothing more we can do
+    }
+    // Some platforms (Windows) refuse to delete a file that is still mapped
+    if (mDeleteOnDestroy && !mFile.delete())
+    {
+      mFile.deleteOnExit();
+    }
+  }
+
+  @Override
+  protected StoredBytes store(byte[] data)
+  {
+    int length = data.length + ALIGNMENT - 1;
+    length -= length % ALIGNMENT;
+
+    int offset = allocate(length);
+    if (offset < 0)
+    {
+      if (!mFullLogged)
+      {
+        mFullLogged = true;
+        getPortletContext().log("Managed request scope file " + mFile + " is full -- keeping " +
+                                "managed request scopes on the heap");
+      }
+      return null;
+    }
+
+    // the region is ours alone so no locking is needed to fill it
+    ByteBuffer buffer = mBuffer.duplicate();
+    buffer.position(offset);
+    buffer.put(data);
+    return new MappedBytes(offset, data.length, length);
+  }
+
+  private int allocate(int length)
+  {
+    synchronized (mFreeRegions)
+    {
+      Iterator<Map.Entry<Integer, Integer>> i = mFreeRegions.entrySet().iterator();
+      while (i.hasNext())
+      {
+        Map.Entry<Integer, Integer> region = i.next();
+        int regionLength = region.getValue().intValue();
+        if (regionLength >= length)
+        {
+          int offset = region.getKey().intValue();
+          i.remove();
+          if (regionLength > length)
+          {
+            mFreeRegions.put(Integer.valueOf(offset + length),
+                             Integer.valueOf(regionLength - length));
+          }
+          return offset;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private void free(int offset, int length)
+  {
+    synchronized (mFreeRegions)
+    {
+      // coalesce with the following region
+      Integer next = Integer.valueOf(offset + length);
+      Integer nextLength = mFreeRegions.remove(next);
+      if (nextLength != null)
+      {
+        length += nextLength.intValue();
+      }
+
+      // and with the preceding one
+      SortedMap<Integer, Integer> head = mFreeRegions.headMap(Integer.valueOf(offset));
+      if (!head.isEmpty())
+      {
+        Integer previous = head.lastKey();
+        int previousLength = head.get(previous).intValue();
+        if (previous.intValue() + previousLength == offset)
+        {
+          offset = previous.intValue();
+          length += previousLength;
+        }
+      }
+
+      mFreeRegions.put(Integer.valueOf(offset), Integer.valueOf(length));
+    }
+  }
+
+  private final class MappedBytes
+    extends StoredBytes
+  {
+    private final int mOffset;
+    private final int mLength;
+    private final int mRegionLength;
+
+    public MappedBytes(int offset, int length, int regionLength)
+    {
+      mOffset = offset;
+      mLength = length;
+      mRegionLength = regionLength;
+    }
+
+    @Override
+    protected byte[] read()
+    {
+      ByteBuffer buffer = mBuffer.duplicate();
+      buffer.position(mOffset);
+      byte[] data = new byte[mLength];
+      buffer.get(data);
+      return data;
+    }
+
+    @Override
+    protected void free()
+    {
+      MappedFileRequestScopeStore.this.free(mOffset, mRegionLength);
+    }
+  }
+}
@@ -0,0 +1,674 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * A {@link BridgeRequestScopeStore} that keeps its scopes in a local store and replicates
+ * every change to the other nodes of a cluster so the render following an action can be
+ * served by any node.
+ * <p>
+ * Changes are encoded (with {@link ScopeCodec}) on the calling thread -- so the replica
+ * is a snapshot of the scope as it was stored -- and queued.  A background thread sends
+ * whatever has queued up as a single batch through a {@link ReplicationTransport}; under
+ * load batches grow, otherwise each change is sent as soon as possible.  Replication is
+ * asynchronous and best effort: if the queue is full the change is dropped (and counted).
+ * A received change that can't be applied (for example because one of its attributes'
+ * classes isn't available on this node) is skipped and counted; the rest of its batch is
+ * still applied.
+ * <p>
+ * Only <code>Serializable</code> attributes are replicated.  In particular the Faces view
+ * isn't -- a replica restored on another node carries the saved view state parameter so
+ * Faces restores the view from its state instead.  The removal of all of a portlet's scopes
+ * (when it is destroyed) isn't replicated as the portlet may well still be running on the
+ * other nodes.
+ * <p>
+ * A scope's removal is only notified (e.g. its attributes' <code>BridgePreDestroy</code>
+ * methods run) on the node that created it: replicas that leave a node's store, whether
+ * removed by a replicated change or evicted, are discarded silently.
+ * <p>
+ * Recognizes the following <code>PortletContext</code> init parameters:
+ * <ul>
+ * <li><code>org.apache.myfaces.portlet.faces.REPLICATED_STORE_CLASS</code>: the local store.
+ * Defaults to {@link HeapRequestScopeStore}.</li>
+ * <li><code>org.apache.myfaces.portlet.faces.REPLICATION_TRANSPORT_CLASS</code>: the
+ * transport.  Required -- {@link LoopbackReplicationTransport} only replicates between the
+ * stores of a single VM.</li>
+ * <li><code>org.apache.myfaces.portlet.faces.REPLICATION_QUEUE_SIZE</code>: the most
+ * changes waiting to be sent.  Defaults to 10000.</li>
+ * </ul>
+ * The {@link InstrumentedRequestScopeStore} methods report on (and resize) the local store
+ * if it supports them.
+ */
+public class ReplicatingRequestScopeStore
+  implements InstrumentedRequestScopeStore
+{
+  public static final String REPLICATED_STORE_CLASS = "org.apache.myfaces.portlet.faces.REPLICATED_STORE_CLASS";
+  public static final String TRANSPORT_CLASS = "org.apache.myfaces.portlet.faces.REPLICATION_TRANSPORT_CLASS";
+  public static final String QUEUE_SIZE = "org.apache.myfaces.portlet.faces.REPLICATION_QUEUE_SIZE";
+
+  private static final int DEFAULT_QUEUE_SIZE = 10000;
+  private static final int MAX_BATCH_SIZE = 100;
+  private static final int BATCH_VERSION = 2;
+
+  private static final int PUT = 1;
+  private static final int REMOVE = 2;
+  private static final int SET_ATTRIBUTE = 3;
+  private static final int REMOVE_ATTRIBUTE = 4;
+  private static final int REMOVE_SESSION = 5;
+
+  private PortletContext mPortletContext = null;
+  private BridgeRequestScopeStore mStore = null;
+  private ReplicationTransport mTransport = null;
+  private ClassLoader mClassLoader = null;
+  private final ScopeCodec mCodec = new ScopeCodec();
+
+  private LinkedBlockingQueue<Change> mQueue = null;
+  private Thread mSender = null;
+  private volatile boolean mStopped = false;
+  private volatile boolean mEncodeFailureLogged = false;
+
+  private final AtomicLong mSentChanges = new AtomicLong();
+  private final AtomicLong mReceivedChanges = new AtomicLong();
+  private final AtomicLong mDroppedChanges = new AtomicLong();
+  private final AtomicLong mFailedChanges = new AtomicLong();
+
+  // the scopes in the local store that were replicated from another node
+  private final ConcurrentHashMap<ScopeKey, Boolean> mReplicas =
+    new ConcurrentHashMap<ScopeKey, Boolean>();
+
+  public void init(PortletContext context, final RemovalListener listener)
+    throws BridgeException
+  {
+    mPortletContext = context;
+
+    mClassLoader = Thread.currentThread().getContextClassLoader();
+    if (mClassLoader == null)
+    {
+      mClassLoader = getClass().getClassLoader();
+    }
+
+    String storeClass = context.getInitParameter(REPLICATED_STORE_CLASS);
+    mStore = BridgeRequestScopeStoreFactory.createStore(storeClass != null ? storeClass.trim() :
+                                                        HeapRequestScopeStore.class.getName());
+    mStore.init(context, listener == null ? null : new RemovalListener()
+      {
+        public void scopeRemoved(ScopeKey key, Map<String, Object> scope)
+        {
+          // a replica's removal is for the node that created it to notify
+          if (mReplicas.remove(key) == null)
+          {
+            listener.scopeRemoved(key, scope);
+          }
+        }
+      });
+
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    String setting = context.getInitParameter(QUEUE_SIZE);
+    if (setting != null)
+    {
+      try
+      {
+        queueSize = Integer.parseInt(setting.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        throw new BridgeException("Invalid value for context init parameter " + QUEUE_SIZE + 
+                                  ": " + setting);
+      }
+    }
+    mQueue = new LinkedBlockingQueue<Change>(Math.max(1, queueSize));
+
+    String transportClass = context.getInitParameter(TRANSPORT_CLASS);
+    if (transportClass == null)
+    {
+      throw new BridgeException("Context init parameter " + TRANSPORT_CLASS + 
+                                " is required to replicate managed request scopes");
+    }
+    try
+    {
+      mTransport = (ReplicationTransport) mClassLoader.loadClass(transportClass.trim())
+                                                      .newInstance();
+    }
+    catch (Exception e)
+    {
+      throw new BridgeException("Unable to instantiate replication transport: " + 
+                                transportClass, e);
+    }
+    mTransport.init(context, new ReplicationTransport.Receiver()
+      {
+        public void receive(byte[] batch)
+        {
+          applyBatch(batch);
+        }
+      });
+
+    mSender = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          sendChanges();
+        }
+      }, "MyFaces Portlet Bridge request scope replication: " + context.getPortletContextName());
+    mSender.setDaemon(true);
+    mSender.start();
+  }
+
+  public Map<String, Object> get(ScopeKey key)
+  {
+    return mStore.get(key);
+  }
+
+  public void put(ScopeKey key, Map<String, Object> scope)
+  {
+    mStore.put(key, scope);
+    // created here now (a replica it replaced was discarded silently)
+    mReplicas.remove(key);
+
+    byte[] data = encode(scope);
+    if (data != null)
+    {
+      enqueue(new Change(PUT, key.getPortletName(), key.getSessionId(), key.getId(), null,
+                         data));
+    }
+  }
+
+  public boolean setAttribute(ScopeKey key, String name, Object value)
+  {
+    if (!mStore.setAttribute(key, name, value))
+    {
+      return false;
+    }
+
+    if (value == null || value instanceof Serializable)
+    {
+      byte[] data = encode(Collections.singletonMap(name, value));
+      if (data != null)
+      {
+        enqueue(new Change(SET_ATTRIBUTE, key.getPortletName(), key.getSessionId(), key.getId(),
+                           null, data));
+      }
+    }
+    return true;
+  }
+
+  public boolean removeAttribute(ScopeKey key, String name)
+  {
+    if (!mStore.removeAttribute(key, name))
+    {
+      return false;
+    }
+
+    enqueue(new Change(REMOVE_ATTRIBUTE, key.getPortletName(), key.getSessionId(), key.getId(),
+                       name, null));
+    return true;
+  }
+
+  public boolean remove(ScopeKey key)
+  {
+    // replicate even if not here -- the other nodes may have it
+    enqueue(new Change(REMOVE, key.getPortletName(), key.getSessionId(), key.getId(), null,
+                       null));
+    return mStore.remove(key);
+  }
+
+  public void removeSessionScopes(String portletName, String sessionId)
+  {
+    enqueue(new Change(REMOVE_SESSION, portletName, sessionId, null, null, null));
+    mStore.removeSessionScopes(portletName, sessionId);
+  }
+
+  public void removePortletScopes(String portletName)
+  {
+    // local only -- the portlet may still be running on the other nodes
+    mStore.removePortletScopes(portletName);
+  }
+
+  public int size()
+  {
+    return mStore.size();
+  }
+
+  public int getMaxScopes()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getMaxScopes() : -1;
+  }
+
+  public void setMaxScopes(int maxScopes)
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    if (store == null)
+    {
+      throw new UnsupportedOperationException(mStore.getClass().getName() +
+                                              " can't be resized");
+    }
+    // local only -- each node sizes its own store
+    store.setMaxScopes(maxScopes);
+  }
+
+  public long getEvictionCount()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getEvictionCount() : -1;
+  }
+
+  public long getExpirationCount()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getExpirationCount() : -1;
+  }
+
+  public long getSessionQuotaEvictionCount()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getSessionQuotaEvictionCount() : -1;
+  }
+
+  public long getWindowQuotaEvictionCount()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getWindowQuotaEvictionCount() : -1;
+  }
+
+  public long getWeight()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getWeight() : -1;
+  }
+
+  public double getAverageAttributeCount()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getAverageAttributeCount() : -1;
+  }
+
+  public long getContendedLockCount()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getContendedLockCount() : -1;
+  }
+
+  public long getLockWaitTime()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getLockWaitTime() : -1;
+  }
+
+  public Set<String> getPortletNames()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getPortletNames() : Collections.<String>emptySet();
+  }
+
+  private InstrumentedRequestScopeStore getInstrumentedStore()
+  {
+    return (mStore instanceof InstrumentedRequestScopeStore) ?
+      (InstrumentedRequestScopeStore) mStore : null;
+  }
+
+  public void destroy()
+  {
+    mStopped = true;
+    mSender.interrupt();
+    try
+    {
+      mSender.join(1000);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    mTransport.destroy();
+    mStore.destroy();
+    mReplicas.clear();
+  }
+
+  /**
+   * @return the number of changes sent to the other nodes
+   */
+  public long getSentChanges()
+  {
+    return mSentChanges.get();
+  }
+
+  /**
+   * @return the number of changes received from the other nodes
+   */
+  public long getReceivedChanges()
+  {
+    return mReceivedChanges.get();
+  }
+
+  /**
+   * @return the number of changes dropped because the queue was full or they couldn't be
+   *         sent
+   */
+  public long getDroppedChanges()
+  {
+    return mDroppedChanges.get();
+  }
+
+  /**
+   * @return the number of received changes that couldn't be applied
+   */
+  public long getFailedChanges()
+  {
+    return mFailedChanges.get();
+  }
+
+  /**
+   * @return the number of changes waiting to be sent
+   */
+  public int getQueuedChanges()
+  {
+    return mQueue.size();
+  }
+
+  private void enqueue(Change change)
+  {
+    if (!mQueue.offer(change))
+    {
+      mDroppedChanges.incrementAndGet();
+    }
+  }
+
+  /*
+   * Encodes the Serializable attributes of a scope.  Returns null if none can
+   * be encoded.
+   */
+  private byte[] encode(Map<String, Object> scope)
+  {
+    Map<String, Object> serializable = new HashMap<String, Object>(scope.size());
+    for (Map.Entry<String, Object> entry : scope.entrySet())
+    {
+      Object value = entry.getValue();
+      if (value == null || value instanceof Serializable)
+      {
+        serializable.put(entry.getKey(), value);
+      }
+    }
+
+    try
+    {
+      return mCodec.encode(serializable);
+    }
+    catch (IOException e)
+    {
+      // a Serializable value references something that isn't -- drop
+      // attributes until the rest encodes
+      Map<String, Object> encodable = new HashMap<String, Object>(serializable.size());
+      for (Map.Entry<String, Object> entry : serializable.entrySet())
+      {
+        try
+        {
+          mCodec.encode(Collections.singletonMap(entry.getKey(), entry.getValue()));
+          encodable.put(entry.getKey(), entry.getValue());
+        }
+        catch (IOException ioe)
+        {
+          if (!mEncodeFailureLogged)
+          {
+            mEncodeFailureLogged = true;
+            mPortletContext.log("Unable to replicate managed request scope attribute " +
+                                entry.getKey() + ": " + ioe.toString());
+          }
+        }
+      }
+
+      try
+      {
+        return encodable.isEmpty() ? null : mCodec.encode(encodable);
+      }
+      catch (IOException ioe)
+      {
+        return null;
+      }
+    }
+  }
+
+  private void sendChanges()
+  {
+    List<Change> batch = new ArrayList<Change>(MAX_BATCH_SIZE);
+    while (!mStopped || !mQueue.isEmpty())
+    {
+      try
+      {
+        if (mStopped)
+        {
+          // flush what's left without blocking
+          mQueue.drainTo(batch, MAX_BATCH_SIZE);
+        }
+        else
+        {
+          batch.add(mQueue.take());
+          mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // destroy() -- loop round to flush
+        continue;
+      }
+      if (batch.isEmpty())
+      {
+        continue;
+      }
+
+      try
+      {
+        mTransport.send(encodeBatch(batch));
+        mSentChanges.addAndGet(batch.size());
+      }
+      catch (Throwable t)
+      {
+        mDroppedChanges.addAndGet(batch.size());
+        mPortletContext.log("Failed replicating managed request scopes", t);
+      }
+      batch.clear();
+    }
+  }
+
+  private byte[] encodeBatch(List<Change> batch)
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(BATCH_VERSION);
+    out.writeInt(batch.size());
+    for (Change change : batch)
+    {
+      out.writeByte(change.mType);
+      writeString(out, change.mPortletName);
+      writeString(out, change.mSessionId);
+      writeString(out, change.mId);
+      writeString(out, change.mName);
+      if (change.mData != null)
+      {
+        out.writeInt(change.mData.length);
+        out.write(change.mData);
+      }
+      else
+      {
+        out.writeInt(-1);
+      }
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private void applyBatch(byte[] batch)
+  {
+    int count = 0;
+    int read = 0;
+    int failed = 0;
+    Exception failure = null;
+    try
+    {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+      int version = in.readByte();
+      if (version != BATCH_VERSION)
+      {
+        throw new StreamCorruptedException("Unsupported replication batch version: " + version);
+      }
+
+      count = in.readInt();
+      for (; read < count; read++)
+      {
+        int type = in.readByte();
+        String portletName = readString(in);
+        String sessionId = readString(in);
+        String id = readString(in);
+        String name = readString(in);
+        byte[] data = null;
+        int length = in.readInt();
+        if (length >= 0)
+        {
+          data = new byte[length];
+          in.readFully(data);
+        }
+        mReceivedChanges.incrementAndGet();
+
+        // each change stands alone -- one that can't be applied mustn't cost the rest
+        try
+        {
+          apply(type, portletName, sessionId, id, name, data);
+        }
+        catch (Exception e)
+        {
+          failed++;
+          if (failure == null)
+          {
+            failure = e;
+          }
+        }
+      }
+    }
+    catch (Exception e)
+    {
+      // the batch itself is unreadable -- what's left of it is lost
+      failed += Math.max(1, count - read);
+      failure = e;
+    }
+
+    if (failed > 0)
+    {
+      mFailedChanges.addAndGet(failed);
+      mPortletContext.log("Failed applying " + failed + " replicated managed request scope " +
+                          "change(s)", failure);
+    }
+  }
+
+  private void apply(int type, String portletName, String sessionId, String id, String name,
+                     byte[] data)
+    throws IOException, ClassNotFoundException
+  {
+    ScopeKey key = (id != null) ? new ScopeKey(portletName, sessionId, id) : null;
+    switch (type)
+    {
+      case PUT:
+        Map<String, Object> scope = mCodec.decode(data, mClassLoader);
+        // marked before so its eviction by the put is silent, and again after
+        // as discarding a replica it replaced unmarks the key
+        mReplicas.put(key, Boolean.TRUE);
+        mStore.put(key, scope);
+        mReplicas.put(key, Boolean.TRUE);
+        break;
+      case REMOVE:
+        mStore.remove(key);
+        break;
+      case SET_ATTRIBUTE:
+        for (Map.Entry<String, Object> entry : mCodec.decode(data, mClassLoader).entrySet())
+        {
+          mStore.setAttribute(key, entry.getKey(), entry.getValue());
+        }
+        break;
+      case REMOVE_ATTRIBUTE:
+        mStore.removeAttribute(key, name);
+        break;
+      case REMOVE_SESSION:
+        mStore.removeSessionScopes(portletName, sessionId);
+        break;
+      default:
+        throw new StreamCorruptedException("Unknown replicated change: " + type);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException
+  {
+    out.writeBoolean(s != null);
+    if (s != null)
+    {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream in)
+    throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /*
+   * A queued change.  The key's parts are kept apart as a session removal
+   * only has the first two.  mName is the attribute an attribute change is
+   * for.
+   */
+  private static final class Change
+  {
+    private final int mType;
+    private final String mPortletName;
+    private final String mSessionId;
+    private final String mId;
+    private final String mName;
+    private final byte[] mData;
+
+    public Change(int type, String portletName, String sessionId, String id, String name,
+                  byte[] data)
+    {
+      mType = type;
+      mPortletName = portletName;
+      mSessionId = sessionId;
+      mId = id;
+      mName = name;
+      mData = data;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.IOException;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * Carries batches of managed request scope changes between the nodes of a cluster for
+ * {@link ReplicatingRequestScopeStore}.  A batch is opaque to the transport; it merely
+ * delivers each batch sent on one node to the {@link Receiver} of every other node in the
+ * same group (but not back to the sender).  Delivery is best effort.
+ * <p>
+ * Implementations must have a public no-arg constructor.  {@link #send} is only ever
+ * called from one thread at a time.
+ */
+public interface ReplicationTransport
+{
+  /**
+   * Applies batches received from other nodes.
+   */
+  public interface Receiver
+  {
+    public void receive(byte[] batch);
+  }
+
+  /**
+   * Called once before the transport is used.  Configuration is read from the
+   * <code>PortletContext</code> init parameters.
+   */
+  public void init(PortletContext context, Receiver receiver)
+    throws BridgeException;
+
+  /**
+   * Sends a batch to the other nodes.
+   */
+  public void send(byte[] batch)
+    throws IOException;
+
+  /**
+   * Called once when the transport is no longer needed.
+   */
+  public void destroy();
+}
@@ -0,0 +1,97 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+/**
+ * Management interface of a portlet application's {@link BridgeRequestScopeStore}.  Values
+ * the store can't provide (see {@link InstrumentedRequestScopeStore}) are reported as -1.
+ */
+public interface RequestScopeStoreMBean
+{
+  public String getStoreClass();
+
+  public int getScopeCount();
+
+  public int getMaxScopes();
+
+  public long getRestoreHits();
+
+  public long getRestoreMisses();
+
+  public long getEvictions();
+
+  public long getExpirations();
+
+  public long getSessionQuotaEvictions();
+
+  public long getWindowQuotaEvictions();
+
+  public double getAverageScopeAttributes();
+
+  public long getAverageScopeBytes();
+
+  public long getContendedLocks();
+
+  public long getLockWaitMillis();
+
+  /**
+   * @return the number of removed scopes waiting for their attributes to be notified or -1
+   *         if they are notified synchronously
+   */
+  public int getRemovalQueueDepth();
+
+  public long getRemovalsCompleted();
+
+  /**
+   * @return the number of removed scopes notified by the removing thread as the queue was
+   *         full
+   */
+  public long getRemovalsRunByCaller();
+
+  /**
+   * @return the number of replicated changes received that couldn't be applied or -1 if
+   *         the store doesn't replicate
+   */
+  public long getReplicationFailures();
+
+  public String[] getPortletNames();
+
+  /**
+   * Changes the most scopes the store holds (<code>MAX_MANAGED_REQUEST_SCOPES</code>) until
+   * the application is restarted.
+   */
+  public void resize(int maxScopes);
+
+  /**
+   * Removes all the scopes of a portlet.
+   */
+  public void purgePortlet(String portletName);
+
+  /**
+   * Removes all the scopes created in a session.
+   * 
+   * @param sessionId
+   *          the id the bridge assigned the session (its
+   *          <code>org.apache.myfaces.portlet.faces.scopeSessionId</code> attribute) rather
+   *          than the container's session id
+   */
+  public void purgeSession(String sessionId);
+}
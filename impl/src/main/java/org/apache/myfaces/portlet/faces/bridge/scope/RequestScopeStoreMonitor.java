@@ -0,0 +1,319 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.portlet.PortletContext;
+
+/**
+ * Monitors a portlet application's {@link BridgeRequestScopeStore} and, unless disabled by
+ * setting the <code>PortletContext</code> init parameter
+ * <code>org.apache.myfaces.portlet.faces.REQUEST_SCOPE_JMX</code> to false, exposes it
+ * through the platform MBean server as
+ * <code>org.apache.myfaces.portlet.faces:type=RequestScopeStore,context=&lt;portlet context
+ * name&gt;,store=&lt;store class&gt;</code>.
+ * <p>
+ * Created by {@link BridgeRequestScopeStoreFactory} along with the store; bridges record
+ * whether the scope a render asked for was found through {@link #recordRestore}.
+ */
+public class RequestScopeStoreMonitor
+  implements RequestScopeStoreMBean
+{
+  public static final String JMX_ENABLED = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_JMX";
+
+  private static final String DOMAIN = "org.apache.myfaces.portlet.faces";
+
+  private final BridgeRequestScopeStore mStore;
+  private final AsyncRemovalListener mAsyncListener;
+  private final ClassLoader mClassLoader;
+  private final AtomicLong mRestoreHits = new AtomicLong();
+  private final AtomicLong mRestoreMisses = new AtomicLong();
+
+  private MBeanServer mServer = null;
+  private ObjectName mName = null;
+
+  /**
+   * @param asyncListener
+   *          the listener handing on the store's removed scopes or null if they are handed on
+   *          synchronously
+   */
+  public RequestScopeStoreMonitor(BridgeRequestScopeStore store,
+                                  AsyncRemovalListener asyncListener)
+  {
+    mStore = store;
+    mAsyncListener = asyncListener;
+    // operations invoked over JMX remove scopes -- do so (and hence notify
+    // the scope's attributes) within the application's class loader
+    mClassLoader = Thread.currentThread().getContextClassLoader();
+  }
+
+  /**
+   * Records whether a render found the scope it asked for.
+   */
+  public void recordRestore(boolean hit)
+  {
+    if (hit)
+    {
+      mRestoreHits.incrementAndGet();
+    }
+    else
+    {
+      mRestoreMisses.incrementAndGet();
+    }
+  }
+
+  /**
+   * Registers this monitor with the platform MBean server unless disabled.  Failing to do
+   * so is logged but otherwise ignored.
+   */
+  public void register(PortletContext context)
+  {
+    String enabled = context.getInitParameter(JMX_ENABLED);
+    if (enabled != null && !Boolean.valueOf(enabled.trim()).booleanValue())
+    {
+      return;
+    }
+
+    String contextName = context.getPortletContextName();
+    try
+    {
+      ObjectName name = 
+        new ObjectName(DOMAIN + ":type=RequestScopeStore,context=" + 
+                       ObjectName.quote(contextName != null ? contextName : "") +
+                       ",store=" + mStore.getClass().getSimpleName());
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(this, RequestScopeStoreMBean.class), name);
+      mServer = server;
+      mName = name;
+    }
+    catch (Exception e)
+    {
+      // e.g. another application with the same name or no permission
+      context.log("Unable to register the managed request scope MBean for " + contextName, e);
+    }
+  }
+
+  public void unregister(PortletContext context)
+  {
+    if (mServer == null)
+    {
+      return;
+    }
+
+    try
+    {
+      mServer.unregisterMBean(mName);
+    }
+    catch (Exception e)
+    {
+      context.log("Unable to unregister the managed request scope MBean " + mName, e);
+    }
+    mServer = null;
+    mName = null;
+  }
+
+  public String getStoreClass()
+  {
+    return mStore.getClass().getName();
+  }
+
+  public int getScopeCount()
+  {
+    return mStore.size();
+  }
+
+  public int getMaxScopes()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getMaxScopes() : -1;
+  }
+
+  public long getRestoreHits()
+  {
+    return mRestoreHits.get();
+  }
+
+  public long getRestoreMisses()
+  {
+    return mRestoreMisses.get();
+  }
+
+  public long getEvictions()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getEvictionCount() : -1;
+  }
+
+  public long getExpirations()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getExpirationCount() : -1;
+  }
+
+  public long getSessionQuotaEvictions()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getSessionQuotaEvictionCount() : -1;
+  }
+
+  public long getWindowQuotaEvictions()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getWindowQuotaEvictionCount() : -1;
+  }
+
+  public double getAverageScopeAttributes()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getAverageAttributeCount() : -1;
+  }
+
+  public long getAverageScopeBytes()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    long weight = (store != null) ? store.getWeight() : -1;
+    if (weight < 0)
+    {
+      return -1;
+    }
+    int size = store.size();
+    return size > 0 ? weight / size : 0;
+  }
+
+  public long getContendedLocks()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getContendedLockCount() : -1;
+  }
+
+  public long getLockWaitMillis()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    return store != null ? store.getLockWaitTime() / 1000000L : -1;
+  }
+
+  public int getRemovalQueueDepth()
+  {
+    return mAsyncListener != null ? mAsyncListener.getQueueDepth() : -1;
+  }
+
+  public long getRemovalsCompleted()
+  {
+    return mAsyncListener != null ? mAsyncListener.getCompletedCount() : -1;
+  }
+
+  public long getRemovalsRunByCaller()
+  {
+    return mAsyncListener != null ? mAsyncListener.getCallerRunsCount() : -1;
+  }
+
+  public long getReplicationFailures()
+  {
+    return (mStore instanceof ReplicatingRequestScopeStore) ?
+      ((ReplicatingRequestScopeStore) mStore).getFailedChanges() : -1;
+  }
+
+  public String[] getPortletNames()
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    if (store == null)
+    {
+      return new String[0];
+    }
+    Set<String> names = store.getPortletNames();
+    return names.toArray(new String[names.size()]);
+  }
+
+  public void resize(int maxScopes)
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    if (store == null)
+    {
+      throw new UnsupportedOperationException(getStoreClass() + " can't be resized");
+    }
+
+    ClassLoader cl = swapClassLoader(mClassLoader);
+    try
+    {
+      store.setMaxScopes(maxScopes);
+    }
+    finally
+    {
+      swapClassLoader(cl);
+    }
+  }
+
+  public void purgePortlet(String portletName)
+  {
+    ClassLoader cl = swapClassLoader(mClassLoader);
+    try
+    {
+      mStore.removePortletScopes(portletName);
+    }
+    finally
+    {
+      swapClassLoader(cl);
+    }
+  }
+
+  public void purgeSession(String sessionId)
+  {
+    InstrumentedRequestScopeStore store = getInstrumentedStore();
+    if (store == null)
+    {
+      throw new UnsupportedOperationException(getStoreClass() + " can't list its portlets");
+    }
+
+    ClassLoader cl = swapClassLoader(mClassLoader);
+    try
+    {
+      // scopes are indexed by portlet first
+      for (String portletName : getPortletNames())
+      {
+        store.removeSessionScopes(portletName, sessionId);
+      }
+    }
+    finally
+    {
+      swapClassLoader(cl);
+    }
+  }
+
+  private InstrumentedRequestScopeStore getInstrumentedStore()
+  {
+    return (mStore instanceof InstrumentedRequestScopeStore) ?
+      (InstrumentedRequestScopeStore) mStore : null;
+  }
+
+  private static ClassLoader swapClassLoader(ClassLoader cl)
+  {
+    Thread thread = Thread.currentThread();
+    ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(cl);
+    return previous;
+  }
+}
@@ -0,0 +1,663 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.faces.application.FacesMessage;
+
+/**
+ * Encodes managed request scopes in a compact, versioned binary form for passivating,
+ * replicating or snapshotting them.
+ * <p>
+ * The types a scope is typically made of -- strings, boxed primitives, the saved action
+ * parameters (maps of <code>String[]</code>), lists, maps, <code>FacesMessage</code>s and
+ * the {@link FacesMessageState} -- are written with a one byte tag and their content.
+ * Each distinct string (attribute names, client ids, parameter names ...) is written once;
+ * repeats refer back to it by index.  Containers referenced more than once are likewise
+ * written once so shared and cyclic references survive.
+ * <p>
+ * Any other value is handed to a {@link ValueCodec}, by default
+ * {@link SerializationValueCodec}.  All such values of a scope are passed to it together so
+ * references between them survive as well.
+ * <p>
+ * Layout: the magic bytes <code>'B' 'S'</code>, a version byte, the length of the body, the
+ * body (the scope as a tagged value) and finally whatever the <code>ValueCodec</code>
+ * produced.  Only exact classes are tagged (a subclass of <code>HashMap</code> goes to the
+ * <code>ValueCodec</code>) so values always decode to the class they were encoded from.
+ * <p>
+ * A <code>ScopeCodec</code> is immutable and safe for concurrent use.
+ */
+public final class ScopeCodec
+{
+  public static final int VERSION = 2;
+
+  private static final int MAGIC_0 = 'B';
+  private static final int MAGIC_1 = 'S';
+
+  // bound on the initial capacity of decoded collections; they grow past it as needed
+  private static final int MAX_INITIAL_CAPACITY = 1024;
+
+  // value tags
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int STRING_REF = 2;
+  private static final int TRUE = 3;
+  private static final int FALSE = 4;
+  private static final int INTEGER = 5;
+  private static final int LONG = 6;
+  private static final int DOUBLE = 7;
+  private static final int STRING_ARRAY = 8;
+  private static final int HASH_MAP = 9;
+  private static final int LINKED_HASH_MAP = 10;
+  private static final int ARRAY_LIST = 11;
+  private static final int FACES_MESSAGE = 12;
+  private static final int FACES_MESSAGE_STATE = 13;
+  private static final int BACK_REF = 14;
+  private static final int FALLBACK = 15;
+
+  private final ValueCodec mFallback;
+
+  /**
+   * Encodes the values <code>ScopeCodec</code> doesn't handle itself.
+   */
+  public interface ValueCodec
+  {
+    /**
+     * Encodes the values as a unit.  Throws <code>NotSerializableException</code> (or
+     * another <code>IOException</code>) if any can't be encoded.
+     */
+    public byte[] encode(List<Object> values)
+      throws IOException;
+
+    /**
+     * Decodes values encoded by {@link #encode}.
+     * 
+     * @param loader
+     *          the loader of the portlet application the values belong to
+     */
+    public List<Object> decode(byte[] data, int offset, int length, ClassLoader loader)
+      throws IOException, ClassNotFoundException;
+  }
+
+  public ScopeCodec()
+  {
+    this(new SerializationValueCodec());
+  }
+
+  public ScopeCodec(ValueCodec fallback)
+  {
+    mFallback = fallback;
+  }
+
+  public byte[] encode(Map<String, Object> scope)
+    throws IOException
+  {
+    Writer body = new Writer();
+    body.writeValue(scope);
+
+    byte[] fallback = null;
+    if (!body.mFallbackValues.isEmpty())
+    {
+      fallback = mFallback.encode(body.mFallbackValues);
+    }
+
+    Writer out = new Writer(body.mLength + 8 + (fallback != null ? fallback.length : 0));
+    out.write(MAGIC_0);
+    out.write(MAGIC_1);
+    out.write(VERSION);
+    out.writeVarInt(body.mLength);
+    out.write(body.mBytes, 0, body.mLength);
+    if (fallback != null)
+    {
+      out.write(fallback, 0, fallback.length);
+    }
+    return out.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> decode(byte[] data, ClassLoader loader)
+    throws IOException, ClassNotFoundException
+  {
+    Reader in = new Reader(data);
+    if (in.read() != MAGIC_0 || in.read() != MAGIC_1)
+    {
+      throw new StreamCorruptedException("Not an encoded request scope");
+    }
+    int version = in.read();
+    if (version != VERSION)
+    {
+      throw new StreamCorruptedException("Unsupported request scope encoding version: " +
+                                         version);
+    }
+
+    int bodyLength = in.readLength();
+    int fallbackOffset = in.mPosition + bodyLength;
+    if (fallbackOffset < data.length)
+    {
+      in.mFallbackValues = mFallback.decode(data, fallbackOffset, data.length - fallbackOffset,
+                                            loader);
+    }
+
+    Object scope = in.readValue();
+    if (in.mPosition != fallbackOffset)
+    {
+      throw new StreamCorruptedException("Request scope body length mismatch");
+    }
+    if (!(scope instanceof Map))
+    {
+      throw new StreamCorruptedException("Encoded value isn't a request scope");
+    }
+    return (Map<String, Object>) scope;
+  }
+
+  private static final class Writer
+  {
+    private byte[] mBytes;
+    private int mLength = 0;
+
+    private final Map<String, Integer> mStrings = new HashMap<String, Integer>();
+    private final IdentityHashMap<Object, Integer> mReferences =
+      new IdentityHashMap<Object, Integer>();
+    private final List<Object> mFallbackValues = new ArrayList<Object>();
+
+    public Writer()
+    {
+      this(1024);
+    }
+
+    public Writer(int capacity)
+    {
+      mBytes = new byte[capacity];
+    }
+
+    public byte[] toByteArray()
+    {
+      byte[] data = new byte[mLength];
+      System.arraycopy(mBytes, 0, data, 0, mLength);
+      return data;
+    }
+
+    public void write(int b)
+    {
+      ensureCapacity(1);
+      mBytes[mLength++] = (byte) b;
+    }
+
+    public void write(byte[] b, int offset, int length)
+    {
+      ensureCapacity(length);
+      System.arraycopy(b, offset, mBytes, mLength, length);
+      mLength += length;
+    }
+
+    public void writeVarInt(int i)
+    {
+      while ((i & ~0x7F) != 0)
+      {
+        write((i & 0x7F) | 0x80);
+        i >>>= 7;
+      }
+      write(i);
+    }
+
+    public void writeVarLong(long l)
+    {
+      while ((l & ~0x7FL) != 0)
+      {
+        write((int) (l & 0x7F) | 0x80);
+        l >>>= 7;
+      }
+      write((int) l);
+    }
+
+    public void writeLong(long l)
+    {
+      ensureCapacity(8);
+      for (int shift = 56; shift >= 0; shift -= 8)
+      {
+        mBytes[mLength++] = (byte) (l >>> shift);
+      }
+    }
+
+    public void writeString(String s)
+    {
+      if (s == null)
+      {
+        write(NULL);
+        return;
+      }
+
+      Integer index = mStrings.get(s);
+      if (index != null)
+      {
+        write(STRING_REF);
+        writeVarInt(index.intValue());
+        return;
+      }
+
+      mStrings.put(s, Integer.valueOf(mStrings.size()));
+      write(STRING);
+      byte[] utf8 = null;
+      try
+      {
+        utf8 = s.getBytes("UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+        // UTF-8 is always supported
+        throw new IllegalStateException(e.toString());
+      }
+      writeVarInt(utf8.length);
+      write(utf8, 0, utf8.length);
+    }
+
+    public void writeValue(Object o)
+    {
+      if (o == null)
+      {
+        write(NULL);
+        return;
+      }
+
+      Class<?> c = o.getClass();
+      if (c == String.class)
+      {
+        writeString((String) o);
+      }
+      else if (c == Boolean.class)
+      {
+        write(((Boolean) o).booleanValue() ? TRUE : FALSE);
+      }
+      else if (c == Integer.class)
+      {
+        write(INTEGER);
+        int i = ((Integer) o).intValue();
+        writeVarInt((i << 1) ^ (i >> 31));
+      }
+      else if (c == Long.class)
+      {
+        write(LONG);
+        long l = ((Long) o).longValue();
+        writeVarLong((l << 1) ^ (l >> 63));
+      }
+      else if (c == Double.class)
+      {
+        write(DOUBLE);
+        writeLong(Double.doubleToLongBits(((Double) o).doubleValue()));
+      }
+      else if (writeReference(o))
+      {
+        return;
+      }
+      else if (c == String[].class)
+      {
+        String[] values = (String[]) o;
+        write(STRING_ARRAY);
+        writeVarInt(values.length);
+        for (int i = 0; i < values.length; i++)
+        {
+          writeString(values[i]);
+        }
+      }
+      else if (c == HashMap.class || c == LinkedHashMap.class)
+      {
+        Map<?, ?> m = (Map<?, ?>) o;
+        write(c == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+        writeVarInt(m.size());
+        for (Map.Entry<?, ?> entry : m.entrySet())
+        {
+          writeValue(entry.getKey());
+          writeValue(entry.getValue());
+        }
+      }
+      else if (c == ArrayList.class)
+      {
+        List<?> l = (List<?>) o;
+        write(ARRAY_LIST);
+        writeVarInt(l.size());
+        for (int i = 0; i < l.size(); i++)
+        {
+          writeValue(l.get(i));
+        }
+      }
+      else if (c == FacesMessage.class)
+      {
+        FacesMessage message = (FacesMessage) o;
+        write(FACES_MESSAGE);
+        FacesMessage.Severity severity = message.getSeverity();
+        writeVarInt(severity != null ? severity.getOrdinal() + 1 : 0);
+        writeString(message.getSummary());
+        writeString(message.getDetail());
+      }
+      else if (c == FacesMessageState.class)
+      {
+        FacesMessageState state = (FacesMessageState) o;
+        write(FACES_MESSAGE_STATE);
+        writeVarInt(state.getClientIds().size());
+        for (String clientId : state.getClientIds())
+        {
+          writeString(clientId);
+          List<FacesMessage> messages = state.getMessages(clientId);
+          writeVarInt(messages.size());
+          for (FacesMessage message : messages)
+          {
+            writeValue(message);
+          }
+        }
+      }
+      else
+      {
+        write(FALLBACK);
+        writeVarInt(mFallbackValues.size());
+        mFallbackValues.add(o);
+      }
+    }
+
+    /*
+     * Writes a back reference if the object has been written already otherwise
+     * notes that it is being written.  Every value that isn't immutable goes
+     * through here -- in the same order as the Reader registers them.
+     */
+    private boolean writeReference(Object o)
+    {
+      Integer index = mReferences.get(o);
+      if (index != null)
+      {
+        write(BACK_REF);
+        writeVarInt(index.intValue());
+        return true;
+      }
+      mReferences.put(o, Integer.valueOf(mReferences.size()));
+      return false;
+    }
+
+    private void ensureCapacity(int n)
+    {
+      if (mLength + n > mBytes.length)
+      {
+        byte[] bytes = new byte[Math.max(mBytes.length * 2, mLength + n)];
+        System.arraycopy(mBytes, 0, bytes, 0, mLength);
+        mBytes = bytes;
+      }
+    }
+  }
+
+  private static final class Reader
+  {
+    private final byte[] mBytes;
+    private int mPosition = 0;
+
+    private final List<String> mStrings = new ArrayList<String>();
+    private final List<Object> mReferences = new ArrayList<Object>();
+    private List<Object> mFallbackValues = null;
+
+    public Reader(byte[] bytes)
+    {
+      mBytes = bytes;
+    }
+
+    public int read()
+      throws StreamCorruptedException
+    {
+      if (mPosition >= mBytes.length)
+      {
+        throw new StreamCorruptedException("Unexpected end of encoded request scope");
+      }
+      return mBytes[mPosition++] & 0xFF;
+    }
+
+    public int readVarInt()
+      throws StreamCorruptedException
+    {
+      int i = 0;
+      for (int shift = 0; shift < 35; shift += 7)
+      {
+        int b = read();
+        i |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+        {
+          return i;
+        }
+      }
+      throw new StreamCorruptedException("Malformed encoded request scope");
+    }
+
+    public long readVarLong()
+      throws StreamCorruptedException
+    {
+      long l = 0;
+      for (int shift = 0; shift < 70; shift += 7)
+      {
+        int b = read();
+        l |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+        {
+          return l;
+        }
+      }
+      throw new StreamCorruptedException("Malformed encoded request scope");
+    }
+
+    public long readLong()
+      throws StreamCorruptedException
+    {
+      if (mBytes.length - mPosition < 8)
+      {
+        throw new StreamCorruptedException("Unexpected end of encoded request scope");
+      }
+      long l = 0;
+      for (int i = 0; i < 8; i++)
+      {
+        l = (l << 8) | (mBytes[mPosition++] & 0xFF);
+      }
+      return l;
+    }
+
+    /**
+     * Reads a length or element count.  Every byte or element takes at least one byte of
+     * input, so a count larger than what is left can only come from corrupt or truncated
+     * data -- reject it before anything is allocated for it.
+     */
+    public int readLength()
+      throws StreamCorruptedException
+    {
+      int length = readVarInt();
+      if (length < 0 || length > mBytes.length - mPosition)
+      {
+        throw new StreamCorruptedException("Malformed encoded request scope");
+      }
+      return length;
+    }
+
+    public String readString()
+      throws StreamCorruptedException
+    {
+      Object o = readValue();
+      if (o != null && !(o instanceof String))
+      {
+        throw new StreamCorruptedException("Expected a string in encoded request scope");
+      }
+      return (String) o;
+    }
+
+    public Object readValue()
+      throws StreamCorruptedException
+    {
+      int tag = read();
+      switch (tag)
+      {
+        case NULL:
+          return null;
+        case STRING:
+        {
+          int length = readLength();
+          String s = null;
+          try
+          {
+            s = new String(mBytes, mPosition, length, "UTF-8");
+          }
+          catch (UnsupportedEncodingException e)
+          {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e.toString());
+          }
+          mPosition += length;
+          mStrings.add(s);
+          return s;
+        }
+        case STRING_REF:
+          return mStrings.get(checkIndex(readVarInt(), mStrings.size()));
+        case TRUE:
+          return Boolean.TRUE;
+        case FALSE:
+          return Boolean.FALSE;
+        case INTEGER:
+        {
+          int i = readVarInt();
+          return Integer.valueOf((i >>> 1) ^ -(i & 1));
+        }
+        case LONG:
+        {
+          long l = readVarLong();
+          return Long.valueOf((l >>> 1) ^ -(l & 1));
+        }
+        case DOUBLE:
+          return Double.valueOf(Double.longBitsToDouble(readLong()));
+        case BACK_REF:
+          return mReferences.get(checkIndex(readVarInt(), mReferences.size()));
+        case STRING_ARRAY:
+        {
+          String[] values = new String[readLength()];
+          mReferences.add(values);
+          for (int i = 0; i < values.length; i++)
+          {
+            values[i] = readString();
+          }
+          return values;
+        }
+        case HASH_MAP:
+        case LINKED_HASH_MAP:
+        {
+          int size = readLength();
+          int capacity = Math.min(size, MAX_INITIAL_CAPACITY) * 4 / 3 + 1;
+          Map<Object, Object> m = (tag == HASH_MAP) ? new HashMap<Object, Object>(capacity)
+                                                    : new LinkedHashMap<Object, Object>(capacity);
+          mReferences.add(m);
+          for (int i = 0; i < size; i++)
+          {
+            Object key = readValue();
+            m.put(key, readValue());
+          }
+          return m;
+        }
+        case ARRAY_LIST:
+        {
+          int size = readLength();
+          List<Object> l = new ArrayList<Object>(Math.min(size, MAX_INITIAL_CAPACITY));
+          mReferences.add(l);
+          for (int i = 0; i < size; i++)
+          {
+            l.add(readValue());
+          }
+          return l;
+        }
+        case FACES_MESSAGE:
+        {
+          // reserve the message's slot before reading its content
+          int index = mReferences.size();
+          mReferences.add(null);
+          FacesMessage.Severity severity = getSeverity(readVarInt());
+          String summary = readString();
+          String detail = readString();
+          FacesMessage message = new FacesMessage(severity, summary, detail);
+          mReferences.set(index, message);
+          return message;
+        }
+        case FACES_MESSAGE_STATE:
+        {
+          FacesMessageState state = new FacesMessageState();
+          mReferences.add(state);
+          int clientIds = readLength();
+          for (int i = 0; i < clientIds; i++)
+          {
+            String clientId = readString();
+            int messages = readLength();
+            for (int j = 0; j < messages; j++)
+            {
+              state.addMessage(clientId, (FacesMessage) readValue());
+            }
+          }
+          return state;
+        }
+        case FALLBACK:
+        {
+          int index = readVarInt();
+          if (mFallbackValues == null)
+          {
+            throw new StreamCorruptedException("Malformed encoded request scope");
+          }
+          // Note: the fallback values go through the Writer's reference
+          // numbering as well so keep the Reader's in step
+          Object o = mFallbackValues.get(checkIndex(index, mFallbackValues.size()));
+          mReferences.add(o);
+          return o;
+        }
+        default:
+          throw new StreamCorruptedException("Unknown tag in encoded request scope: " + tag);
+      }
+    }
+
+    private static FacesMessage.Severity getSeverity(int ordinal)
+    {
+      if (ordinal == 0)
+      {
+        return null;
+      }
+      for (Object o : FacesMessage.VALUES)
+      {
+        FacesMessage.Severity severity = (FacesMessage.Severity) o;
+        if (severity.getOrdinal() == ordinal - 1)
+        {
+          return severity;
+        }
+      }
+      return FacesMessage.SEVERITY_INFO;
+    }
+
+    private static int checkIndex(int index, int size)
+      throws StreamCorruptedException
+    {
+      if (index < 0 || index >= size)
+      {
+        throw new StreamCorruptedException("Malformed encoded request scope");
+      }
+      return index;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletSession;
+
+/**
+ * Identifies a managed request scope: the portlet that created it, the session it was
+ * created in and an id unique within this node.  Only the id travels to the client (as a
+ * render parameter); the rest of the key is recovered from the request the id comes back
+ * with.  Hence an id is useless outside of the portlet and session that created it.
+ * <p>
+ * The session isn't identified by its own id -- containers change that, e.g. on login or
+ * when the session fails over to a node with another route -- but by an id the bridge
+ * assigns it and keeps in the session (see {@link #getSessionId(PortletSession, boolean)}).
+ * <p>
+ * Ids are a random node prefix (fixed for the life of the class) followed by a counter, both
+ * base64url encoded -- typically a dozen characters.
+ */
+public final class ScopeKey
+  implements Serializable
+{
+  private static final long serialVersionUID = 2250174718294520461L;
+
+  // PortletSession attribute (application scope): the id the session's scopes are keyed by
+  public static final String SESSION_ID_ATTRIBUTE = "org.apache.myfaces.portlet.faces.scopeSessionId";
+
+  private static final char[] BASE64URL =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  // 48 random bits -- 8 characters
+  private static final int NODE_CHARS = 8;
+  private static final char[] NODE_PREFIX = new char[NODE_CHARS];
+  private static final AtomicLong sCounter = new AtomicLong();
+
+  static
+  {
+    long node = new SecureRandom().nextLong();
+    for (int i = 0; i < NODE_CHARS; i++)
+    {
+      NODE_PREFIX[i] = BASE64URL[(int) (node & 0x3F)];
+      node >>>= 6;
+    }
+  }
+
+  private final String mPortletName;
+  private final String mSessionId;
+  private final String mId;
+  private final int    mHashCode;
+
+  public ScopeKey(String portletName, String sessionId, String id)
+  {
+    if (portletName == null || id == null)
+    {
+      throw new IllegalArgumentException("A scope key needs a portlet name and an id");
+    }
+    mPortletName = portletName;
+    mSessionId = sessionId;
+    mId = id;
+
+    // ids are unique by themselves so are all thats needed for a good hash
+    mHashCode = id.hashCode();
+  }
+
+  /**
+   * @return a key with a new id
+   */
+  public static ScopeKey newKey(String portletName, String sessionId)
+  {
+    return new ScopeKey(portletName, sessionId, nextId());
+  }
+
+  /**
+   * @return an id that is unique within this node (and almost certainly the cluster)
+   */
+  public static String nextId()
+  {
+    long count = sCounter.getAndIncrement();
+
+    char[] id = new char[NODE_CHARS + 11];
+    System.arraycopy(NODE_PREFIX, 0, id, 0, NODE_CHARS);
+    int length = NODE_CHARS;
+    do
+    {
+      id[length++] = BASE64URL[(int) (count & 0x3F)];
+      count >>>= 6;
+    }
+    while (count != 0);
+
+    return new String(id, 0, length);
+  }
+
+  /**
+   * Gets the id that keys the scopes created in a session.  It moves with the session's
+   * attributes so, unlike the session's own id, survives the container changing that.
+   * 
+   * @param create
+   *          whether to assign the session an id if it has none yet
+   * @return the id or null if the session has none (and create is false)
+   */
+  public static String getSessionId(PortletSession session, boolean create)
+  {
+    String id = (String) session.getAttribute(SESSION_ID_ATTRIBUTE, 
+                                              PortletSession.APPLICATION_SCOPE);
+    if (id == null && create)
+    {
+      // Note: concurrent first actions of a session may each assign one -- the
+      // last wins and the others' scopes won't be found
+      id = nextId();
+      session.setAttribute(SESSION_ID_ATTRIBUTE, id, PortletSession.APPLICATION_SCOPE);
+    }
+    return id;
+  }
+
+  public String getPortletName()
+  {
+    return mPortletName;
+  }
+
+  public String getSessionId()
+  {
+    return mSessionId;
+  }
+
+  /**
+   * @return the part of the key that is handed to the client
+   */
+  public String getId()
+  {
+    return mId;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (o == this)
+    {
+      return true;
+    }
+    if (!(o instanceof ScopeKey))
+    {
+      return false;
+    }
+
+    ScopeKey key = (ScopeKey) o;
+    return mHashCode == key.mHashCode && mId.equals(key.mId) &&
+      mPortletName.equals(key.mPortletName) &&
+      (mSessionId == null ? key.mSessionId == null : mSessionId.equals(key.mSessionId));
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return mHashCode;
+  }
+
+  @Override
+  public String toString()
+  {
+    return mPortletName + ':' + mSessionId + ':' + mId;
+  }
+}
@@ -0,0 +1,268 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.el.ELContext;
+import javax.faces.application.Application;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+import javax.portlet.PortletConfig;
+import javax.portlet.PortletContext;
+import javax.portlet.PortletRequest;
+import javax.portlet.PortletResponse;
+import javax.portlet.PortletSession;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Estimates the heap retained by a managed request scope by walking the graph of objects
+ * reachable from it and summing their approximate shallow sizes.  Sizes assume a 64 bit VM
+ * with compressed references (12 byte object headers, 4 byte references, 8 byte
+ * alignment); the result is an estimate intended for budgeting, not an exact measure.
+ * <p>
+ * Objects reachable from more than one attribute are only counted once.  The walk does
+ * not descend into objects that are shared with the rest of the application (classes,
+ * class loaders, threads, the portlet/servlet context, config, session, request and
+ * response, the Faces and EL contexts and the Faces application) -- scope attributes
+ * routinely reach these through managed beans and value expressions, and charging them to
+ * every scope would drown out the scope's own size.  The walk also stops after visiting a
+ * fixed number of objects so that pathological graphs can't make a request arbitrarily
+ * slow.
+ * <p>
+ * The reflective field lists are cached per class.  An estimator holds on to the classes
+ * it has seen and so should be discarded with the application.
+ */
+public final class ScopeSizeEstimator
+{
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+  private static final int ALIGNMENT = 8;
+
+  public static final int DEFAULT_MAX_OBJECTS = 10000;
+
+  private static final Field[] NO_FIELDS = new Field[0];
+
+  private final int mMaxObjects;
+  private final ConcurrentHashMap<Class<?>, ClassInfo> mClassInfo =
+    new ConcurrentHashMap<Class<?>, ClassInfo>();
+
+  public ScopeSizeEstimator()
+  {
+    this(DEFAULT_MAX_OBJECTS);
+  }
+
+  /**
+   * @param maxObjects
+   *          the most objects a single estimate visits
+   */
+  public ScopeSizeEstimator(int maxObjects)
+  {
+    mMaxObjects = maxObjects;
+  }
+
+  /**
+   * @return the estimated number of bytes retained by the scope's attributes
+   */
+  public long estimate(Map<String, Object> scope)
+  {
+    if (scope == null)
+    {
+      return 0;
+    }
+
+    IdentityHashMap<Object, Object> visited = new IdentityHashMap<Object, Object>();
+    List<Object> pending = new ArrayList<Object>();
+    for (Map.Entry<String, Object> entry : scope.entrySet())
+    {
+      pending.add(entry.getKey());
+      pending.add(entry.getValue());
+    }
+
+    long size = 0;
+    while (!pending.isEmpty() && visited.size() < mMaxObjects)
+    {
+      Object o = pending.remove(pending.size() - 1);
+      if (o == null || visited.containsKey(o) || isShared(o))
+      {
+        continue;
+      }
+      visited.put(o, o);
+
+      Class<?> c = o.getClass();
+      if (c.isArray())
+      {
+        size += sizeOfArray(o, c, pending);
+      }
+      else
+      {
+        ClassInfo info = getClassInfo(c);
+        size += info.mShallowSize;
+        for (int i = 0; i < info.mReferenceFields.length; i++)
+        {
+          try
+          {
+            pending.add(info.mReferenceFields[i].get(o));
+          }
+          catch (IllegalAccessException e)
+          {
+            // count what we can
+            ;
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Forgets the cached class information.
+   */
+  public void clear()
+  {
+    mClassInfo.clear();
+  }
+
+  private long sizeOfArray(Object array, Class<?> c, List<Object> pending)
+  {
+    int length = Array.getLength(array);
+    Class<?> componentType = c.getComponentType();
+    if (!componentType.isPrimitive())
+    {
+      Object[] elements = (Object[]) array;
+      for (int i = 0; i < length; i++)
+      {
+        pending.add(elements[i]);
+      }
+      return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+    return align(ARRAY_HEADER + (long) length * sizeOfPrimitive(componentType));
+  }
+
+  private ClassInfo getClassInfo(Class<?> c)
+  {
+    ClassInfo info = mClassInfo.get(c);
+    if (info == null)
+    {
+      info = new ClassInfo(c);
+      mClassInfo.put(c, info);
+    }
+    return info;
+  }
+
+  private static boolean isShared(Object o)
+  {
+    return o instanceof Class || o instanceof ClassLoader || o instanceof Thread ||
+      o instanceof PortletContext || o instanceof ServletContext ||
+      o instanceof PortletConfig || o instanceof PortletSession || o instanceof HttpSession ||
+      o instanceof PortletRequest || o instanceof ServletRequest ||
+      o instanceof PortletResponse || o instanceof ServletResponse ||
+      o instanceof FacesContext || o instanceof ExternalContext || o instanceof ELContext ||
+      o instanceof Application;
+  }
+
+  private static int sizeOfPrimitive(Class<?> c)
+  {
+    if (c == long.class || c == double.class)
+    {
+      return 8;
+    }
+    else if (c == int.class || c == float.class)
+    {
+      return 4;
+    }
+    else if (c == short.class || c == char.class)
+    {
+      return 2;
+    }
+    return 1;
+  }
+
+  private static long align(long size)
+  {
+    return (size + ALIGNMENT - 1) & ~((long) ALIGNMENT - 1);
+  }
+
+  private static final class ClassInfo
+  {
+    private final long mShallowSize;
+    private final Field[] mReferenceFields;
+
+    public ClassInfo(Class<?> c)
+    {
+      long size = OBJECT_HEADER;
+      List<Field> references = new ArrayList<Field>();
+      for (Class<?> k = c; k != null; k = k.getSuperclass())
+      {
+        Field[] fields = null;
+        try
+        {
+          fields = k.getDeclaredFields();
+        }
+        catch (SecurityException e)
+        {
+          fields = NO_FIELDS;
+        }
+
+        for (int i = 0; i < fields.length; i++)
+        {
+          Field f = fields[i];
+          if (Modifier.isStatic(f.getModifiers()))
+          {
+            continue;
+          }
+
+          Class<?> type = f.getType();
+          if (type.isPrimitive())
+          {
+            size += sizeOfPrimitive(type);
+          }
+          else
+          {
+            size += REFERENCE;
+            try
+            {
+              f.setAccessible(true);
+              references.add(f);
+            }
+            catch (SecurityException e)
+            {
+              // still count the reference itself
+              ;
+            }
+          }
+        }
+      }
+      mShallowSize = align(size);
+      mReferenceFields = references.toArray(new Field[references.size()]);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default {@link ScopeCodec.ValueCodec}: Java serialization.  Classes are resolved
+ * against the portlet application's class loader when read back in as the codec may be
+ * called on a thread that doesn't have it as its context class loader.
+ */
+public class SerializationValueCodec
+  implements ScopeCodec.ValueCodec
+{
+  public byte[] encode(List<Object> values)
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeInt(values.size());
+    for (Object value : values)
+    {
+      out.writeObject(value);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public List<Object> decode(byte[] data, int offset, int length, ClassLoader loader)
+    throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream in = 
+      new LoaderAwareObjectInputStream(new ByteArrayInputStream(data, offset, length), loader);
+    try
+    {
+      int size = in.readInt();
+      List<Object> values = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++)
+      {
+        values.add(in.readObject());
+      }
+      return values;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static final class LoaderAwareObjectInputStream
+    extends ObjectInputStream
+  {
+    private final ClassLoader mLoader;
+
+    public LoaderAwareObjectInputStream(InputStream in, ClassLoader loader)
+      throws IOException
+    {
+      super(in);
+      mLoader = loader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+      throws IOException, ClassNotFoundException
+    {
+      if (mLoader != null)
+      {
+        try
+        {
+          return Class.forName(desc.getName(), false, mLoader);
+        }
+        catch (ClassNotFoundException e)
+        {
+          // fall through to the default (handles primitives among others)
+          ;
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
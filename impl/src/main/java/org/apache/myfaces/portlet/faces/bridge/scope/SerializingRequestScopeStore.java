@@ -0,0 +1,251 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.PortletContext;
+import javax.portlet.faces.BridgeException;
+
+/**
+ * Base class for stores that hold scopes in serialized form outside of the Java heap.
+ * <p>
+ * Not everything in a scope can be serialized -- in particular the Faces view
+ * (<code>UIViewRoot</code>) isn't <code>Serializable</code>.  Attributes whose value
+ * isn't <code>Serializable</code> stay on the heap alongside the handle to the serialized
+ * remainder.  If serialization still fails (a <code>Serializable</code> value that
+ * references something that isn't) the whole scope stays on the heap.
+ * <p>
+ * Scopes are serialized with a {@link ScopeCodec}.  The <code>PortletContext</code> init
+ * parameter <code>org.apache.myfaces.portlet.faces.REQUEST_SCOPE_VALUE_CODEC</code> names
+ * the {@link ScopeCodec.ValueCodec} it uses for values it doesn't encode itself (by default
+ * {@link SerializationValueCodec}).
+ * <p>
+ * Subclasses provide the storage: {@link #store} copies the serialized bytes into it and
+ * returns the {@link StoredBytes} used to read and eventually free them.
+ */
+public abstract class SerializingRequestScopeStore
+  extends AbstractRequestScopeStore<SerializingRequestScopeStore.SerializedScope>
+{
+  public static final String VALUE_CODEC_CLASS = "org.apache.myfaces.portlet.faces.REQUEST_SCOPE_VALUE_CODEC";
+
+  private ClassLoader mClassLoader = null;
+  private ScopeCodec mCodec = null;
+  private volatile boolean mFallbackLogged = false;
+
+  @Override
+  public void init(PortletContext context, RemovalListener listener)
+    throws BridgeException
+  {
+    // scopes hold application classes -- remember the application's loader
+    mClassLoader = Thread.currentThread().getContextClassLoader();
+    if (mClassLoader == null)
+    {
+      mClassLoader = getClass().getClassLoader();
+    }
+
+    String codecClass = context.getInitParameter(VALUE_CODEC_CLASS);
+    if (codecClass == null)
+    {
+      mCodec = new ScopeCodec();
+    }
+    else
+    {
+      try
+      {
+        mCodec = new ScopeCodec((ScopeCodec.ValueCodec) mClassLoader.loadClass(codecClass.trim())
+                                                                    .newInstance());
+      }
+      catch (Exception e)
+      {
+        throw new BridgeException("Unable to instantiate request scope value codec: " +
+                                  codecClass, e);
+      }
+    }
+
+    super.init(context, listener);
+  }
+
+  /**
+   * Copies the serialized scope into the store's storage.
+   * 
+   * @return the stored bytes or null if there is no room for them
+   */
+  protected abstract StoredBytes store(byte[] data);
+
+  @Override
+  protected SerializedScope encode(Map<String, Object> scope)
+  {
+    Map<String, Object> serializable = new HashMap<String, Object>(scope.size());
+    Map<String, Object> heap = null;
+    for (Map.Entry<String, Object> entry : scope.entrySet())
+    {
+      Object value = entry.getValue();
+      if (value == null || value instanceof Serializable)
+      {
+        serializable.put(entry.getKey(), value);
+      }
+      else
+      {
+        if (heap == null)
+        {
+          heap = new HashMap<String, Object>(4);
+        }
+        heap.put(entry.getKey(), value);
+      }
+    }
+
+    if (serializable.isEmpty())
+    {
+      // nothing to gain
+      return new SerializedScope(null, 0, scope);
+    }
+
+    StoredBytes bytes = null;
+    int length = 0;
+    try
+    {
+      byte[] data = mCodec.encode(serializable);
+      length = data.length;
+      bytes = store(data);
+    }
+    catch (IOException e)
+    {
+      if (!mFallbackLogged)
+      {
+        mFallbackLogged = true;
+        getPortletContext().log("Unable to serialize a managed request scope -- keeping it " +
+                                "on the heap: " + e.toString());
+      }
+    }
+
+    if (bytes == null)
+    {
+      // couldn't serialize or no room -- keep it all on the heap
+      return new SerializedScope(null, 0, scope);
+    }
+    return new SerializedScope(bytes, length, heap);
+  }
+
+  /**
+   * Weighs a scope by the bytes it occupies in the store's storage plus the estimated size
+   * of whatever stayed on the heap.
+   */
+  @Override
+  protected long weigh(Map<String, Object> scope, SerializedScope value)
+  {
+    return value.mLength + getSizeEstimator().estimate(value.mHeapAttributes);
+  }
+
+  @Override
+  protected Map<String, Object> decode(SerializedScope scope)
+  {
+    if (scope.mBytes == null)
+    {
+      return scope.mHeapAttributes;
+    }
+
+    byte[] data = scope.read();
+    if (data == null)
+    {
+      // already released
+      return null;
+    }
+
+    Map<String, Object> m = null;
+    try
+    {
+      m = mCodec.decode(data, mClassLoader);
+    }
+    catch (Exception e)
+    {
+      getPortletContext().log("Unable to deserialize a managed request scope", e);
+      return null;
+    }
+
+    if (scope.mHeapAttributes != null)
+    {
+      m.putAll(scope.mHeapAttributes);
+    }
+    return m;
+  }
+
+  @Override
+  protected void release(SerializedScope scope)
+  {
+    scope.release();
+  }
+
+  /**
+   * Serialized bytes held in a store's storage.
+   */
+  protected abstract static class StoredBytes
+  {
+    /**
+     * @return a copy of the stored bytes
+     */
+    protected abstract byte[] read();
+
+    /**
+     * Returns the storage for reuse.  Never called more than once nor concurrently with
+     * {@link #read}.
+     */
+    protected abstract void free();
+  }
+
+  /**
+   * The value held in the map for each scope.
+   */
+  protected static final class SerializedScope
+  {
+    private final StoredBytes mBytes;
+    private final int mLength;
+    private final Map<String, Object> mHeapAttributes;
+    private boolean mReleased = false;
+
+    public SerializedScope(StoredBytes bytes, int length, Map<String, Object> heapAttributes)
+    {
+      mBytes = bytes;
+      mLength = length;
+      mHeapAttributes = heapAttributes;
+    }
+
+    // synchronized with release so storage is never reused while its being read
+    synchronized byte[] read()
+    {
+      return mReleased ? null : mBytes.read();
+    }
+
+    synchronized void release()
+    {
+      if (!mReleased)
+      {
+        mReleased = true;
+        if (mBytes != null)
+        {
+          mBytes.free();
+        }
+      }
+    }
+  }
+}
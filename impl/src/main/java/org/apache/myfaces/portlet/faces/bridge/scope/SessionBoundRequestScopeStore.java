@@ -0,0 +1,40 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import javax.portlet.PortletSession;
+
+/**
+ * Implemented by stores that keep a session's scopes in the session itself.  As the store
+ * only learns of sessions through this interface the bridge binds the request's session
+ * before storing or looking up scopes of that session.  A session's scopes go away with the
+ * session so the bridge needn't watch for it ending.
+ */
+public interface SessionBoundRequestScopeStore
+  extends BridgeRequestScopeStore
+{
+  /**
+   * Makes the session's scopes available to the store -- possibly for the first time on this
+   * node if the session has failed over -- and lets the session know if they changed so
+   * containers that replicate sessions pick up the change.
+   */
+  public void bindSession(PortletSession session);
+}
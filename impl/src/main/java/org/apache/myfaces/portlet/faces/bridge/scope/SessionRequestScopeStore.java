@@ -0,0 +1,632 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.portlet.PortletContext;
+import javax.portlet.PortletSession;
+import javax.portlet.faces.BridgeException;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+
+/**
+ * A {@link BridgeRequestScopeStore} that keeps each session's scopes in the session.  Users
+ * never contend with one another and a session's scopes are discarded along with it.
+ * <p>
+ * The scopes also fail over with the session, but only the attributes that can be
+ * serialized are written when the session is passivated or replicated -- each is serialized
+ * on its own and those that fail are dropped (and logged) rather than failing the whole
+ * session.  In particular the Faces view is dropped
+ * unless the bridge keeps its saved state instead of the view itself; Faces then restores
+ * the view from the preserved view state parameter.
+ * <p>
+ * Each session holds at most <code>org.apache.myfaces.portlet.faces.REQUEST_SCOPE_MAX_SESSION_SCOPES</code>
+ * scopes (20 by default), evicting its least recently used one to make room.  Likewise each
+ * portlet window holds at most <code>REQUEST_SCOPE_MAX_WINDOW_SCOPES</code> scopes (no limit
+ * by default).  <code>MAX_MANAGED_REQUEST_SCOPES</code>, the weight limits and the expiry
+ * settings don't apply -- a scope lives no longer than its session.
+ * <p>
+ * The store itself only maps the ids of the sessions bound on this node (see
+ * {@link SessionBoundRequestScopeStore#bindSession}) to their scopes -- a session that is
+ * passivated leaves the map (without its scopes being notified as removed) until it is next
+ * bound.
+ */
+public class SessionRequestScopeStore
+  implements SessionBoundRequestScopeStore
+{
+  public static final int DEFAULT_MAX_SESSION_SCOPES = 20;
+
+  private static final String SESSION_ATTRIBUTE = "org.apache.myfaces.portlet.faces.sessionRequestScopes";
+
+  private PortletContext mPortletContext = null;
+  private RemovalListener mListener = null;
+  private int mMaxSessionScopes = DEFAULT_MAX_SESSION_SCOPES;
+  private int mMaxWindowScopes = 0;
+  private final ConcurrentHashMap<String, SessionScopes> mSessions =
+    new ConcurrentHashMap<String, SessionScopes>();
+
+  public void init(PortletContext context, RemovalListener listener)
+    throws BridgeException
+  {
+    mPortletContext = context;
+    mListener = listener;
+    mMaxSessionScopes = getLimit(context, MAX_SESSION_SCOPES, DEFAULT_MAX_SESSION_SCOPES);
+    mMaxWindowScopes = getLimit(context, MAX_WINDOW_SCOPES, 0);
+  }
+
+  public void bindSession(PortletSession session)
+  {
+    String sessionId = ScopeKey.getSessionId(session, false);
+    if (sessionId == null)
+    {
+      // no scope was ever created in it
+      return;
+    }
+    SessionScopes scopes = 
+      (SessionScopes) session.getAttribute(SESSION_ATTRIBUTE, PortletSession.APPLICATION_SCOPE);
+    if (scopes == null)
+    {
+      scopes = mSessions.get(sessionId);
+      if (scopes == null)
+      {
+        // nothing stored yet
+        return;
+      }
+      session.setAttribute(SESSION_ATTRIBUTE, scopes, PortletSession.APPLICATION_SCOPE);
+      scopes.clearChanged();
+      return;
+    }
+
+    SessionScopes bound = mSessions.get(sessionId);
+    if (bound != scopes)
+    {
+      // a session that failed over (or whose scopes were stored before it
+      // was first bound) -- the session's copy wins
+      scopes.attach(this);
+      if (bound == null)
+      {
+        bound = mSessions.putIfAbsent(sessionId, scopes);
+      }
+      else if (mSessions.replace(sessionId, bound, scopes))
+      {
+        scopes.adopt(bound);
+      }
+    }
+
+    if (scopes.clearChanged())
+    {
+      // have replicating containers take note of the change
+      session.setAttribute(SESSION_ATTRIBUTE, scopes, PortletSession.APPLICATION_SCOPE);
+    }
+  }
+
+  public Map<String, Object> get(ScopeKey key)
+  {
+    SessionScopes scopes = getSessionScopes(key, false);
+    return scopes != null ? scopes.get(key) : null;
+  }
+
+  public void put(ScopeKey key, Map<String, Object> scope)
+  {
+    getSessionScopes(key, true).put(key, scope);
+  }
+
+  public boolean setAttribute(ScopeKey key, String name, Object value)
+  {
+    SessionScopes scopes = getSessionScopes(key, false);
+    return scopes != null && scopes.update(key, name, value, false);
+  }
+
+  public boolean removeAttribute(ScopeKey key, String name)
+  {
+    SessionScopes scopes = getSessionScopes(key, false);
+    return scopes != null && scopes.update(key, name, null, true);
+  }
+
+  public boolean remove(ScopeKey key)
+  {
+    SessionScopes scopes = getSessionScopes(key, false);
+    return scopes != null && scopes.remove(key);
+  }
+
+  public void removeSessionScopes(String portletName, String sessionId)
+  {
+    SessionScopes scopes = mSessions.get(sessionId);
+    if (scopes != null)
+    {
+      scopes.removePortletScopes(portletName);
+    }
+  }
+
+  public void removePortletScopes(String portletName)
+  {
+    for (SessionScopes scopes : mSessions.values())
+    {
+      scopes.removePortletScopes(portletName);
+    }
+  }
+
+  public int size()
+  {
+    int size = 0;
+    for (SessionScopes scopes : mSessions.values())
+    {
+      size += scopes.size();
+    }
+    return size;
+  }
+
+  public void destroy()
+  {
+    // the scopes themselves go away with their sessions
+    mSessions.clear();
+  }
+
+  private static int getLimit(PortletContext context, String name, int defaultValue)
+  {
+    String setting = context.getInitParameter(name);
+    if (setting == null)
+    {
+      return defaultValue;
+    }
+
+    int limit;
+    try
+    {
+      limit = Integer.parseInt(setting.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + name + ": " +
+                                setting);
+    }
+    if (limit <= 0)
+    {
+      throw new BridgeException("Invalid value for context init parameter " + name + ": " +
+                                setting);
+    }
+    return limit;
+  }
+
+  private SessionScopes getSessionScopes(ScopeKey key, boolean create)
+  {
+    if (key == null || key.getSessionId() == null)
+    {
+      if (create)
+      {
+        throw new IllegalArgumentException("Scopes can only be stored in a session: " + key);
+      }
+      return null;
+    }
+
+    SessionScopes scopes = mSessions.get(key.getSessionId());
+    if (scopes == null && create)
+    {
+      scopes = new SessionScopes(this, key.getSessionId());
+      SessionScopes existing = mSessions.putIfAbsent(key.getSessionId(), scopes);
+      if (existing != null)
+      {
+        scopes = existing;
+      }
+    }
+    return scopes;
+  }
+
+  private void sessionEnded(SessionScopes scopes)
+  {
+    mSessions.remove(scopes.mSessionId, scopes);
+    fireRemoved(scopes.removeAll());
+  }
+
+  private void fireRemoved(List<Map.Entry<ScopeKey, Map<String, Object>>> removed)
+  {
+    if (removed == null || mListener == null)
+    {
+      return;
+    }
+    for (Map.Entry<ScopeKey, Map<String, Object>> entry : removed)
+    {
+      mListener.scopeRemoved(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /*
+   * A session's scopes.  Guarded by its own monitor; the listener is always
+   * notified after it has been released.
+   */
+  private static final class SessionScopes
+    implements HttpSessionBindingListener, HttpSessionActivationListener, Serializable
+  {
+    private static final long serialVersionUID = -6083412375960524781L;
+
+    private static final SerializationValueCodec CODEC = new SerializationValueCodec();
+
+    private final String mSessionId;
+    // written by hand -- see writeObject
+    private transient LinkedHashMap<ScopeKey, Map<String, Object>> mScopes;
+    private boolean mChanged = false;
+    // not replicated -- reattached when the session is bound on the new node
+    private transient SessionRequestScopeStore mStore;
+
+    public SessionScopes(SessionRequestScopeStore store, String sessionId)
+    {
+      mStore = store;
+      mSessionId = sessionId;
+      // access ordered so the eldest entry is the least recently used one
+      mScopes = new LinkedHashMap<ScopeKey, Map<String, Object>>(16, 0.75f, true);
+    }
+
+    public synchronized void attach(SessionRequestScopeStore store)
+    {
+      mStore = store;
+    }
+
+    /*
+     * Takes over the scopes stored on this node before the session's own
+     * copy was bound.
+     */
+    public void adopt(SessionScopes scopes)
+    {
+      List<Map.Entry<ScopeKey, Map<String, Object>>> removed = scopes.removeAll();
+      if (removed != null)
+      {
+        for (Map.Entry<ScopeKey, Map<String, Object>> entry : removed)
+        {
+          put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    public synchronized boolean clearChanged()
+    {
+      boolean changed = mChanged;
+      mChanged = false;
+      return changed;
+    }
+
+    public synchronized Map<String, Object> get(ScopeKey key)
+    {
+      return mScopes.get(key);
+    }
+
+    public void put(ScopeKey key, Map<String, Object> scope)
+    {
+      List<Map.Entry<ScopeKey, Map<String, Object>>> removed = null;
+      SessionRequestScopeStore store;
+      synchronized (this)
+      {
+        store = mStore;
+        Map<String, Object> replaced = mScopes.put(key, scope);
+        if (replaced != null && replaced != scope)
+        {
+          removed = add(removed, key, replaced);
+        }
+        if (store.mMaxWindowScopes > 0)
+        {
+          removed = enforceWindowQuota(removed, key, store.mMaxWindowScopes);
+        }
+        Iterator<Map.Entry<ScopeKey, Map<String, Object>>> i = mScopes.entrySet().iterator();
+        while (mScopes.size() > store.mMaxSessionScopes)
+        {
+          Map.Entry<ScopeKey, Map<String, Object>> eldest = i.next();
+          removed = add(removed, eldest.getKey(), eldest.getValue());
+          i.remove();
+        }
+        mChanged = true;
+      }
+      store.fireRemoved(removed);
+    }
+
+    /*
+     * Evicts the least recently used scopes of the added scope's portlet
+     * window until it's within its quota.  Called holding the monitor.
+     */
+    private List<Map.Entry<ScopeKey, Map<String, Object>>> enforceWindowQuota(
+      List<Map.Entry<ScopeKey, Map<String, Object>>> removed, ScopeKey added, int maxWindowScopes)
+    {
+      String portletName = added.getPortletName();
+      int count = 0;
+      for (ScopeKey key : mScopes.keySet())
+      {
+        if (key.getPortletName().equals(portletName))
+        {
+          count++;
+        }
+      }
+
+      Iterator<Map.Entry<ScopeKey, Map<String, Object>>> i = mScopes.entrySet().iterator();
+      while (count > maxWindowScopes && i.hasNext())
+      {
+        Map.Entry<ScopeKey, Map<String, Object>> entry = i.next();
+        if (entry.getKey() != added && entry.getKey().getPortletName().equals(portletName))
+        {
+          removed = add(removed, entry.getKey(), entry.getValue());
+          i.remove();
+          count--;
+        }
+      }
+      return removed;
+    }
+
+    /*
+     * Scopes are never modified in place -- concurrent renders of the same
+     * action may be reading them -- instead a modified copy replaces the
+     * original.
+     */
+    public synchronized boolean update(ScopeKey key, String name, Object value, boolean remove)
+    {
+      Map<String, Object> scope = mScopes.get(key);
+      if (scope == null || (remove && !scope.containsKey(name)))
+      {
+        return false;
+      }
+
+      Map<String, Object> copy = new HashMap<String, Object>(scope);
+      if (remove)
+      {
+        copy.remove(name);
+      }
+      else
+      {
+        copy.put(name, value);
+      }
+      mScopes.put(key, copy);
+      mChanged = true;
+      return true;
+    }
+
+    public boolean remove(ScopeKey key)
+    {
+      Map<String, Object> removed;
+      SessionRequestScopeStore store;
+      synchronized (this)
+      {
+        store = mStore;
+        removed = mScopes.remove(key);
+        if (removed == null)
+        {
+          return false;
+        }
+        mChanged = true;
+      }
+      store.fireRemoved(add(null, key, removed));
+      return true;
+    }
+
+    public void removePortletScopes(String portletName)
+    {
+      List<Map.Entry<ScopeKey, Map<String, Object>>> removed = null;
+      SessionRequestScopeStore store;
+      synchronized (this)
+      {
+        store = mStore;
+        Iterator<Map.Entry<ScopeKey, Map<String, Object>>> i = mScopes.entrySet().iterator();
+        while (i.hasNext())
+        {
+          Map.Entry<ScopeKey, Map<String, Object>> entry = i.next();
+          if (entry.getKey().getPortletName().equals(portletName))
+          {
+            removed = add(removed, entry.getKey(), entry.getValue());
+            i.remove();
+          }
+        }
+        if (removed != null)
+        {
+          mChanged = true;
+        }
+      }
+      store.fireRemoved(removed);
+    }
+
+    public synchronized List<Map.Entry<ScopeKey, Map<String, Object>>> removeAll()
+    {
+      List<Map.Entry<ScopeKey, Map<String, Object>>> removed = null;
+      for (Map.Entry<ScopeKey, Map<String, Object>> entry : mScopes.entrySet())
+      {
+        removed = add(removed, entry.getKey(), entry.getValue());
+      }
+      mScopes.clear();
+      return removed;
+    }
+
+    public synchronized int size()
+    {
+      return mScopes.size();
+    }
+
+    public void valueBound(HttpSessionBindingEvent event)
+    {
+    }
+
+    public void sessionWillPassivate(HttpSessionEvent event)
+    {
+      // the scopes now live on in the passivated session only -- don't keep
+      // this copy reachable from the store (they aren't removed, so no notice)
+      SessionRequestScopeStore store;
+      synchronized (this)
+      {
+        store = mStore;
+      }
+      if (store != null)
+      {
+        store.mSessions.remove(mSessionId, this);
+      }
+    }
+
+    public void sessionDidActivate(HttpSessionEvent event)
+    {
+      // nothing to do -- bindSession attaches the activated scopes
+    }
+
+    public void valueUnbound(HttpSessionBindingEvent event)
+    {
+      try
+      {
+        if (event.getSession().getAttribute(event.getName()) == this)
+        {
+          // merely set again (to flag a change) -- still in the session
+          return;
+        }
+      }
+      catch (IllegalStateException e)
+      {
+        // the session is being invalidated
+        ;
+      }
+
+      SessionRequestScopeStore store;
+      synchronized (this)
+      {
+        store = mStore;
+      }
+      if (store != null)
+      {
+        store.sessionEnded(this);
+      }
+    }
+
+    /*
+     * Serializes each attribute on its own and only writes those that can be
+     * -- the bridge's own scopes hold objects that can't (the Faces view by
+     * default), and neither can Serializable values that reference them, but
+     * one of them mustn't cost the container the whole session.
+     */
+    private synchronized void writeObject(ObjectOutputStream out)
+      throws IOException
+    {
+      out.defaultWriteObject();
+      out.writeInt(mScopes.size());
+      for (Map.Entry<ScopeKey, Map<String, Object>> entry : mScopes.entrySet())
+      {
+        Map<String, byte[]> serialized = new HashMap<String, byte[]>(entry.getValue().size());
+        for (Map.Entry<String, Object> attribute : entry.getValue().entrySet())
+        {
+          try
+          {
+            serialized.put(attribute.getKey(), 
+                           CODEC.encode(Collections.singletonList(attribute.getValue())));
+          }
+          catch (IOException e)
+          {
+            if (mStore != null)
+            {
+              mStore.mPortletContext.log("Not writing managed request scope attribute " + 
+                                         attribute.getKey() + " of " + entry.getKey() + 
+                                         " with the session: " + e.toString());
+            }
+          }
+        }
+
+        out.writeObject(entry.getKey());
+        out.writeInt(serialized.size());
+        for (Map.Entry<String, byte[]> attribute : serialized.entrySet())
+        {
+          out.writeUTF(attribute.getKey());
+          out.writeInt(attribute.getValue().length);
+          out.write(attribute.getValue());
+        }
+      }
+    }
+
+    private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException
+    {
+      in.defaultReadObject();
+
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      if (loader == null)
+      {
+        loader = SessionScopes.class.getClassLoader();
+      }
+
+      int size = in.readInt();
+      mScopes = new LinkedHashMap<ScopeKey, Map<String, Object>>(16, 0.75f, true);
+      for (int i = 0; i < size; i++)
+      {
+        ScopeKey key = (ScopeKey) in.readObject();
+        int attributes = in.readInt();
+        Map<String, Object> scope = new HashMap<String, Object>();
+        for (int a = 0; a < attributes; a++)
+        {
+          String name = in.readUTF();
+          byte[] data = new byte[in.readInt()];
+          in.readFully(data);
+          scope.put(name, CODEC.decode(data, 0, data.length, loader).get(0));
+        }
+        mScopes.put(key, scope);
+      }
+    }
+
+    private static List<Map.Entry<ScopeKey, Map<String, Object>>> add(
+      List<Map.Entry<ScopeKey, Map<String, Object>>> removed, ScopeKey key,
+      Map<String, Object> scope)
+    {
+      if (removed == null)
+      {
+        removed = new ArrayList<Map.Entry<ScopeKey, Map<String, Object>>>(2);
+      }
+      removed.add(new RemovedScope(key, scope));
+      return removed;
+    }
+  }
+
+  private static final class RemovedScope
+    implements Map.Entry<ScopeKey, Map<String, Object>>
+  {
+    private final ScopeKey mKey;
+    private final Map<String, Object> mScope;
+
+    public RemovedScope(ScopeKey key, Map<String, Object> scope)
+    {
+      mKey = key;
+      mScope = scope;
+    }
+
+    public ScopeKey getKey()
+    {
+      return mKey;
+    }
+
+    public Map<String, Object> getValue()
+    {
+      return mScope;
+    }
+
+    public Map<String, Object> setValue(Map<String, Object> value)
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.wrapper;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.portlet.PortletRequest;
+import javax.portlet.RenderRequest;
+
+/**
+ * Layers a saved bridge request scope under the attributes of a render request.  Rather
+ * than copying every saved attribute into the request (and firing the container's attribute
+ * listeners for each) lookups that miss the request fall through to the saved scope.
+ * Writes always go to the request; removing a saved attribute hides it.  The saved scope
+ * itself is never modified.
+ * <p>
+ * Code that bypasses this wrapper -- in particular a resource included through the
+ * portlet's <code>PortletRequestDispatcher</code>, which is handed the container's request
+ * -- won't see the saved attributes.  {@link #materialize} copies them into the request
+ * before such an include.
+ */
+public class RequestScopeOverlayWrapper extends RenderRequestDecorator
+{
+  private Map<String, Object> mScope        = null;
+  // saved attributes removed during this request
+  private Set<String>         mRemoved      = null;
+  private boolean             mMaterialized = false;
+
+  public RequestScopeOverlayWrapper(RenderRequest request, Map<String, Object> scope)
+                                      throws IllegalArgumentException
+  {
+    super(request);
+
+    mScope = scope;
+  }
+
+  /**
+   * Returns the overlay wrapping the request (possibly beneath other decorators) or null
+   * if there is none.
+   */
+  public static RequestScopeOverlayWrapper getOverlay(PortletRequest request)
+  {
+    while (request instanceof PortletRequestDecorator)
+    {
+      if (request instanceof RequestScopeOverlayWrapper)
+      {
+        return (RequestScopeOverlayWrapper) request;
+      }
+      request = ((PortletRequestDecorator) request).getParent();
+    }
+    return null;
+  }
+
+  /**
+   * Copies the saved attributes that haven't been replaced or removed into the wrapped
+   * request.  Only the first call does anything.
+   */
+  public void materialize()
+  {
+    if (mMaterialized)
+    {
+      return;
+    }
+    mMaterialized = true;
+
+    for (Map.Entry<String, Object> entry : mScope.entrySet())
+    {
+      String name = entry.getKey();
+      if (!isRemoved(name) && getParent().getAttribute(name) == null)
+      {
+        getParent().setAttribute(name, entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public Object getAttribute(String name)
+  {
+    Object o = super.getAttribute(name);
+    if (o != null || mMaterialized || isRemoved(name))
+    {
+      return o;
+    }
+    return mScope.get(name);
+  }
+
+  @Override
+  public Enumeration<String> getAttributeNames()
+  {
+    if (mMaterialized)
+    {
+      return super.getAttributeNames();
+    }
+
+    Set<String> names = new LinkedHashSet<String>(Collections.list(super.getAttributeNames()));
+    for (String name : mScope.keySet())
+    {
+      if (!isRemoved(name))
+      {
+        names.add(name);
+      }
+    }
+    return Collections.enumeration(names);
+  }
+
+  @Override
+  public void setAttribute(String name, Object o)
+  {
+    if (o == null)
+    {
+      removeAttribute(name);
+      return;
+    }
+    super.setAttribute(name, o);
+  }
+
+  @Override
+  public void removeAttribute(String name)
+  {
+    super.removeAttribute(name);
+    if (!mMaterialized && mScope.containsKey(name))
+    {
+      if (mRemoved == null)
+      {
+        mRemoved = new HashSet<String>(4);
+      }
+      mRemoved.add(name);
+    }
+  }
+
+  private boolean isRemoved(String name)
+  {
+    return mRemoved != null && mRemoved.contains(name);
+  }
+}
@@ -0,0 +1,174 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.context;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import javax.portlet.PortletURL;
+import javax.portlet.faces.Bridge;
+
+/**
+ * An action URL of the current render with a hole where its parameters go.  Creating a
+ * container <code>PortletURL</code> per link is costly on pages with many links, yet (for a
+ * given portlet mode, window state and security) the URLs of a render only differ in their
+ * parameters -- so where the container writes those as a plain query string they can be
+ * spliced into a single template.
+ * <p>
+ * Whether that is safe is probed once per template: the container must write two probe
+ * parameters, next to each other, as <code>name=value</code> pairs of its query string
+ * encoded exactly as <code>URLEncoder</code> would (UTF-8), and nowhere else.  Otherwise the
+ * template is {@link #isUsable unusable} and callers fall back to creating
+ * <code>PortletURL</code>s.  The probe can't tell whether the container signs its URLs or
+ * otherwise derives part of them from the parameters -- spliced URLs would carry a stale
+ * signature -- so templating is only done when configured.
+ */
+final class ActionURLTemplate
+{
+  private static final String ENCODING = "UTF-8";
+
+  private static final String VIEW_ID_PROBE = "_xViewIdProbe";
+  private static final String PROBE_PARAMETER = "_xTemplateProbe";
+  // needs encoding: a space, a reserved character and a non ASCII one
+  private static final String PROBE_VALUE = "a b/c\u00e9";
+
+  private static final ActionURLTemplate UNUSABLE = new ActionURLTemplate(null, null);
+
+  private final String mPrefix;
+  private final String mSuffix;
+
+  private ActionURLTemplate(String prefix, String suffix)
+  {
+    mPrefix = prefix;
+    mSuffix = suffix;
+  }
+
+  /**
+   * Creates the template from a fresh action URL that has its portlet mode, window state
+   * and security set but no parameters.
+   */
+  public static ActionURLTemplate create(PortletURL actionURL)
+  {
+    String first;
+    String second;
+    try
+    {
+      actionURL.setParameter(PortletExternalContextImpl.ACTION_ID_PARAMETER_NAME, VIEW_ID_PROBE);
+      actionURL.setParameter(PROBE_PARAMETER, PROBE_VALUE);
+      first = PortletExternalContextImpl.ACTION_ID_PARAMETER_NAME + "=" + VIEW_ID_PROBE;
+      second = PROBE_PARAMETER + "=" + URLEncoder.encode(PROBE_VALUE, ENCODING);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      return UNUSABLE;
+    }
+
+    // same workaround for double encoding as for the URLs we don't template
+    String url = actionURL.toString().replaceAll("\\&amp\\;", "&");
+
+    // the probes may be written in either order
+    String probes = first + "&" + second;
+    int start = url.indexOf(probes);
+    if (start == -1)
+    {
+      probes = second + "&" + first;
+      start = url.indexOf(probes);
+    }
+    if (start <= 0)
+    {
+      return UNUSABLE;
+    }
+
+    int end = start + probes.length();
+    char before = url.charAt(start - 1);
+    char after = end < url.length() ? url.charAt(end) : '&';
+    // the probes must appear nowhere but in their parameters (e.g. not echoed in a
+    // path segment or state token the container also writes)
+    if ((before != '?' && before != '&') || (after != '&' && after != '#') ||
+        !occursOnce(url, VIEW_ID_PROBE) || !occursOnce(url, PROBE_PARAMETER) ||
+        url.lastIndexOf('?', start - 1) == -1)
+    {
+      return UNUSABLE;
+    }
+
+    return new ActionURLTemplate(url.substring(0, start), url.substring(end));
+  }
+
+  private static boolean occursOnce(String url, String probe)
+  {
+    int i = url.indexOf(probe);
+    return i != -1 && url.indexOf(probe, i + probe.length()) == -1;
+  }
+
+  /**
+   * @return false if the container's URLs can't be templated
+   */
+  public boolean isUsable()
+  {
+    return mPrefix != null;
+  }
+
+  /**
+   * @param viewId
+   *          the target view
+   * @param parameters
+   *          the other parameters of the URL (the bridge's own parameters having been left
+   *          out)
+   * @return the action URL
+   */
+  public String encode(String viewId, Map<String, String> parameters)
+  {
+    StringBuilder sb = new StringBuilder(mPrefix.length() + mSuffix.length() + 64);
+    sb.append(mPrefix);
+    try
+    {
+      sb.append(PortletExternalContextImpl.ACTION_ID_PARAMETER_NAME).append('=')
+        .append(URLEncoder.encode(viewId, ENCODING));
+      for (Map.Entry<String, String> entry : parameters.entrySet())
+      {
+        String name = entry.getKey();
+        if (!isPortletParameter(name))
+        {
+          sb.append('&').append(URLEncoder.encode(name, ENCODING)).append('=')
+            .append(URLEncoder.encode(entry.getValue(), ENCODING));
+        }
+      }
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      // can't happen -- we've encoded with it before
+      throw new IllegalStateException(e.getMessage());
+    }
+    sb.append(mSuffix);
+    return sb.toString();
+  }
+
+  /**
+   * @return true if the parameter sets the URL's mode, window state or security (or is the
+   *         direct link flag) rather than being passed on
+   */
+  public static boolean isPortletParameter(String name)
+  {
+    return name.equals(Bridge.PORTLET_MODE_PARAMETER) ||
+      name.equals(Bridge.PORTLET_WINDOWSTATE_PARAMETER) ||
+      name.equals(Bridge.PORTLET_SECURE_PARAMETER) || name.equals(Bridge.DIRECT_LINK);
+  }
+}
@@ -54,8 +54,10 @@ import javax.portlet.faces.Bridge;
 import javax.portlet.faces.BridgeDefaultViewNotSpecifiedException;
 import javax.portlet.faces.BridgeUtil;
 
-import org.apache.myfaces.portlet.faces.util.QueryString;
+import org.apache.myfaces.portlet.faces.bridge.wrapper.RequestScopeOverlayWrapper;
+import org.apache.myfaces.portlet.faces.util.ParsedURL;
 import org.apache.myfaces.portlet.faces.util.URLUtils;
+import org.apache.myfaces.portlet.faces.util.config.FacesServletMappings;
 import org.apache.myfaces.portlet.faces.util.map.EnumerationIterator;
 import org.apache.myfaces.portlet.faces.util.map.PortletApplicationMap;
 import org.apache.myfaces.portlet.faces.util.map.PortletInitParameterMap;
@@ -91,6 +93,12 @@ public class PortletExternalContextImpl extends ExternalContext
   public static final String    PROCESS_AS_RENDER_QUERY_PARAMETER  = "_xProcessAsRender";
   public static final String    REQUIRES_REWRITE_PARAMETER         = "_xRequiresRewrite";
 
+  // PortletContext init parameter: "true" has render phase action URLs built from a
+  // template per render (see ActionURLTemplate) rather than each created by the
+  // container.  Only for containers that don't sign their URLs or add checksums over
+  // their parameters.
+  public static final String    ACTION_URL_TEMPLATES               = "org.apache.myfaces.portlet.faces.ACTION_URL_TEMPLATES";
+
   private PortletContext        mPortletContext;
   private PortletConfig         mPortletConfig;
   private PortletRequest        mPortletRequest;
@@ -118,18 +126,29 @@ public class PortletExternalContextImpl extends ExternalContext
 
   private PortletRequestHeaders mPortletRequestHeaders             = null;
 
-  // Requested Faces view
+  // Requested Faces view -- mRequestedViewId is as found on the request (it
+  // may carry a query string); mViewId is parsed from it on first use
+  private String                mRequestedViewId                   = null;
+  private boolean               mDefaultViewId                     = false;
   private String                mViewId                            = null;
 
-  // Reverse engineered serlvet paths from mappings
-  private List<String>          mFacesMappings                     = null;
+  // Reverse engineered serlvet paths from mappings -- computed on first use
+  // as many requests (e.g. renders of minimized portlets) never consult them
+  private boolean               mPathsMapped                       = false;
+  private boolean               mFacesMappingsResolved             = false;
+  private FacesServletMappings  mFacesMappings                     = null;
+  private ViewIdResolutionCache mViewIdCache                       = null;
   private String                mServletPath                       = null;
   private String                mPathInfo                          = null;
 
   // Current Portlet phase
   private Bridge.PortletPhase   mPhase                             = null;
 
-  @SuppressWarnings("unchecked")
+  // Render phase action URL templates by portlet mode/window state/security --
+  // null until the first action URL is encoded
+  private Map<String, ActionURLTemplate> mActionURLTemplates       = null;
+  private boolean               mTemplateActionURLs                = false;
+
   public PortletExternalContextImpl(PortletConfig portletConfig, PortletRequest portletRequest,
                                     PortletResponse portletResponse) throws FacesException
   {
@@ -140,21 +159,10 @@ public class PortletExternalContextImpl extends ExternalContext
 
     mPhase = (Bridge.PortletPhase) mPortletRequest.getAttribute(Bridge.PORTLET_LIFECYCLE_PHASE);
 
-
-    // viewId is the actual context relative path to the resource
-    mViewId = getViewId();
-    
-    // Now reverse engineer the servlet paths from the mappings 
-    // So Faces thinks was a client request
-    mFacesMappings = (List<String>) mPortletRequest.getAttribute(FACES_MAPPING_ATTRIBUTE);
-    mapPathsFromViewId(mViewId, mFacesMappings);
-
-
-    // JSF RI relies on a request attribute setting to properly handle
-    // suffix mapping -- but because their suffix mapping code is servlet dependent
-    // we need to set it for them
-    setFacesMapping();
-
+    // Only locate the viewId here so a missing default view is still reported
+    // on construction -- parsing it and reverse engineering the servlet paths
+    // from it are deferred until someone asks for them
+    mRequestedViewId = getRequestedViewId();
   }
 
   public void release()
@@ -176,7 +184,15 @@ public class PortletExternalContextImpl extends ExternalContext
     mRequestHeaderValuesMap = null;
     mInitParameterMap = null;
 
+    mRequestedViewId = null;
     mViewId = null;
+    mPathsMapped = false;
+    mFacesMappingsResolved = false;
+    mFacesMappings = null;
+    mViewIdCache = null;
+    mServletPath = null;
+    mPathInfo = null;
+    mActionURLTemplates = null;
   }
 
   /**
@@ -202,34 +218,25 @@ public class PortletExternalContextImpl extends ExternalContext
   public String encodeActionURL(String url)
   {
     String viewId = null, path = null;
-    QueryString queryStr = null;
-    int queryStart = -1;
 
-    if (url.startsWith("#") || isExternalURL(url) || isDirectLink(url))
+    if (url.startsWith("#"))
+    {
+      return url;
+    }
+
+    // Parse once -- everything below works off the parsed URL
+    ParsedURL parsedURL = new ParsedURL(url, "UTF8");
+    if (parsedURL.isExternal(getRequestContextPath()) || parsedURL.isDirectLink())
     {
       return url;
     }
 
     // url might contain DirectLink=false parameter -- spec says remove if
     // it does.
-    url = removeDirectLink(url);
+    url = parsedURL.getURLWithoutDirectLink();
 
     // Now determine the target viewId
-
-    // First: split URL into path and query string
-    // Hold onto QueryString for later processing
-    queryStart = url.indexOf('?');
-
-    if (queryStart != -1)
-    {
-      // Get the query string
-      queryStr = new QueryString(url.substring(queryStart + 1), "UTF8");
-      path = url.substring(0, queryStart);
-    }
-    else
-    {
-      path = url;
-    }
+    path = parsedURL.getPath();
 
     // Determine the viewId by inspecting the URL
     if (!isRelativePath(path))
@@ -252,55 +259,61 @@ public class PortletExternalContextImpl extends ExternalContext
       // the response
       // (interaction
       // state)
+      String templatedURL = encodeActionURLFromTemplate(viewId, parsedURL);
+      if (templatedURL != null)
+      {
+        return templatedURL;
+      }
+
       RenderResponse renderResponse = (RenderResponse) getResponse();
       PortletURL actionURL = renderResponse.createActionURL();
       actionURL.setParameter(ACTION_ID_PARAMETER_NAME, viewId);
       
       // Add extra parameters so they don't get lost
-      if (queryStr != null)
+      for (Map.Entry<String, String> entry : parsedURL.getParameterMap().entrySet())
       {
-        Enumeration<String> list = queryStr.getParameterNames();
-        while (list.hasMoreElements())
+        String param = entry.getKey();
+        if (param.equals(Bridge.DIRECT_LINK))
+        {
+          ; // removed -- see above
+        }
+        else if (param.equals(Bridge.PORTLET_MODE_PARAMETER))
+        {
+          try 
+          {
+            actionURL.setPortletMode(new PortletMode(entry.getValue()));
+          }
+          catch (Exception e)
+          {
+            ; // do nothing -- just ignore
+          }
+        }
+        else if (param.equals(Bridge.PORTLET_WINDOWSTATE_PARAMETER))
         {
-          String param = list.nextElement().toString();
-          if (param.equals(Bridge.PORTLET_MODE_PARAMETER))
+          try 
           {
-            try 
-            {
-              actionURL.setPortletMode(new PortletMode(queryStr.getParameter(param)));
-            }
-            catch (Exception e)
-            {
-              ; // do nothing -- just ignore
-            }
+            actionURL.setWindowState(new WindowState(entry.getValue()));
           }
-          else if (param.equals(Bridge.PORTLET_WINDOWSTATE_PARAMETER))
+          catch (Exception e)
           {
-            try 
-            {
-              actionURL.setWindowState(new WindowState(queryStr.getParameter(param)));
-            }
-            catch (Exception e)
-            {
-              ; // do nothing -- just ignore
-            }
+            ; // do nothing -- just ignore
           }
-          else if (param.equals(Bridge.PORTLET_SECURE_PARAMETER))
+        }
+        else if (param.equals(Bridge.PORTLET_SECURE_PARAMETER))
+        {
+          try 
           {
-            try 
-            {
-              actionURL.setSecure(Boolean.getBoolean(queryStr.getParameter(param)));
-            }
-            catch (Exception e)
-            {
-              ; // do nothing -- just ignore
-            }
+            actionURL.setSecure(Boolean.getBoolean(entry.getValue()));
           }
-          else
+          catch (Exception e)
           {
-            actionURL.setParameter(param, queryStr.getParameter(param));
+            ; // do nothing -- just ignore
           }
         }
+        else
+        {
+          actionURL.setParameter(param, entry.getValue());
+        }
       }
 
       // TODO hack to workaround double encoding problem
@@ -316,56 +329,129 @@ public class PortletExternalContextImpl extends ExternalContext
       actionResponse.setRenderParameter(ACTION_ID_PARAMETER_NAME, viewId);
 
       // set other request params (if any) into navigational states
-      if (queryStr != null)
+      for (Map.Entry<String, String> entry : parsedURL.getParameterMap().entrySet())
       {
-        Enumeration<String> list = queryStr.getParameterNames();
-        while (list.hasMoreElements())
+        String param = entry.getKey();
+        if (param.equals(Bridge.DIRECT_LINK))
+        {
+          ; // removed -- see above
+        }
+        else if (param.equals(Bridge.PORTLET_MODE_PARAMETER))
         {
-          String param = list.nextElement();
-          if (param.equals(Bridge.PORTLET_MODE_PARAMETER))
+          try 
           {
-            try 
-            {
-              actionResponse.setPortletMode(new PortletMode(queryStr.getParameter(param)));
-            }
-            catch (Exception e)
-            {
-            	//TODO: Ignoring is probably dangerous here as it means that we are
-            	//      EITHER using exceptions for flow control (which is extreemly
-            	//      inefficient) or we should log a message saying what the issue
-            	//      is.  According to the Javadocs an exception is thrown here if the
-            	//      portlet mode is not allowed or if sendRedirect has already been
-            	//      called.  In either case we should log an information type message
-            	//      here.
-              ; // do nothing -- just ignore
-            }
+            actionResponse.setPortletMode(new PortletMode(entry.getValue()));
           }
-          else if (param.equals(Bridge.PORTLET_WINDOWSTATE_PARAMETER))
+          catch (Exception e)
           {
-            try 
-            {
-              actionResponse.setWindowState(new WindowState(queryStr.getParameter(param)));
-            }
-            catch (Exception e)
-            {
-              ; // do nothing -- just ignore
-            }
+          	//TODO: Ignoring is probably dangerous here as it means that we are
+          	//      EITHER using exceptions for flow control (which is extreemly
+          	//      inefficient) or we should log a message saying what the issue
+          	//      is.  According to the Javadocs an exception is thrown here if the
+          	//      portlet mode is not allowed or if sendRedirect has already been
+          	//      called.  In either case we should log an information type message
+          	//      here.
+            ; // do nothing -- just ignore
           }
-          else if (param.equals(Bridge.PORTLET_SECURE_PARAMETER))
+        }
+        else if (param.equals(Bridge.PORTLET_WINDOWSTATE_PARAMETER))
+        {
+          try 
           {
-            ; // ignore -- do nothing as can't encode into an actionResponse
+            actionResponse.setWindowState(new WindowState(entry.getValue()));
           }
-          else
+          catch (Exception e)
           {
-            actionResponse.setRenderParameter(param, queryStr.getParameter(param));
+            ; // do nothing -- just ignore
           }
         }
+        else if (param.equals(Bridge.PORTLET_SECURE_PARAMETER))
+        {
+          ; // ignore -- do nothing as can't encode into an actionResponse
+        }
+        else
+        {
+          actionResponse.setRenderParameter(param, entry.getValue());
+        }
       }
 
       return url;
     }
   }
 
+  /*
+   * @return the render phase action URL built from this render's template or null if
+   *         the URL can't be templated
+   */
+  private String encodeActionURLFromTemplate(String viewId, ParsedURL parsedURL)
+  {
+    if (mActionURLTemplates == null)
+    {
+      mTemplateActionURLs =
+        "true".equalsIgnoreCase(mPortletContext.getInitParameter(ACTION_URL_TEMPLATES));
+      mActionURLTemplates = new HashMap<String, ActionURLTemplate>(4);
+    }
+    if (!mTemplateActionURLs)
+    {
+      return null;
+    }
+
+    // a query string _ACTION_ID would replace the viewId -- leave that to the container
+    if (parsedURL.getParameter(ACTION_ID_PARAMETER_NAME) != null)
+    {
+      return null;
+    }
+
+    String mode = parsedURL.getParameter(Bridge.PORTLET_MODE_PARAMETER);
+    String windowState = parsedURL.getParameter(Bridge.PORTLET_WINDOWSTATE_PARAMETER);
+    String secure = parsedURL.getParameter(Bridge.PORTLET_SECURE_PARAMETER);
+    String key = mode + "|" + windowState + "|" + secure;
+
+    ActionURLTemplate template = mActionURLTemplates.get(key);
+    if (template == null)
+    {
+      PortletURL actionURL = ((RenderResponse) getResponse()).createActionURL();
+      // exactly as the container built URLs do it
+      if (mode != null)
+      {
+        try 
+        {
+          actionURL.setPortletMode(new PortletMode(mode));
+        }
+        catch (Exception e)
+        {
+          ; // do nothing -- just ignore
+        }
+      }
+      if (windowState != null)
+      {
+        try 
+        {
+          actionURL.setWindowState(new WindowState(windowState));
+        }
+        catch (Exception e)
+        {
+          ; // do nothing -- just ignore
+        }
+      }
+      if (secure != null)
+      {
+        try 
+        {
+          actionURL.setSecure(Boolean.getBoolean(secure));
+        }
+        catch (Exception e)
+        {
+          ; // do nothing -- just ignore
+        }
+      }
+      template = ActionURLTemplate.create(actionURL);
+      mActionURLTemplates.put(key, template);
+    }
+
+    return template.isUsable() ? template.encode(viewId, parsedURL.getParameterMap()) : null;
+  }
+
   @Override
   public void redirect(String url) throws IOException
   {
@@ -373,8 +459,7 @@ public class PortletExternalContextImpl extends ExternalContext
     // redirects within this app are dealt (elsewhere) as navigations
     // so do nothing. External links are redirected
 
-    if (mPhase == Bridge.PortletPhase.ACTION_PHASE
-        && (url.startsWith("#") || isExternalURL(url) || isDirectLink(url)))
+    if (mPhase == Bridge.PortletPhase.ACTION_PHASE && isRedirectURL(url))
     {
       ((ActionResponse) getResponse()).sendRedirect(url);
     }
@@ -388,7 +473,7 @@ public class PortletExternalContextImpl extends ExternalContext
   public String encodeResourceURL(String s)
   {
 
-    if (!isExternalURL(s))
+    if (!new ParsedURL(s, "UTF8").isExternal(getRequestContextPath()))
     {
       if (!s.startsWith("/"))
       {
@@ -455,6 +540,14 @@ public class PortletExternalContextImpl extends ExternalContext
                                              + requestURI);
     }
 
+    // The include is handed the container's request -- make sure the
+    // restored bridge request scope is visible to the included resource
+    RequestScopeOverlayWrapper overlay = RequestScopeOverlayWrapper.getOverlay(mPortletRequest);
+    if (overlay != null)
+    {
+      overlay.materialize();
+    }
+
     try
     {
       prd.include((RenderRequest) mOrigPortletRequest, (RenderResponse) mOrigPortletResponse);
@@ -521,6 +614,9 @@ public class PortletExternalContextImpl extends ExternalContext
   {
     if (mRequestMap == null)
     {
+      // Faces reads the servlet path attributes set when mapping the paths
+      // through this map, so they must be in place before it is handed out
+      mapPaths();
       mRequestMap = new PortletRequestMap(mPortletRequest);
     }
     return mRequestMap;
@@ -531,6 +627,8 @@ public class PortletExternalContextImpl extends ExternalContext
   {
     if (mRequestParameterMap == null)
     {
+      // the internal parameters come from the viewId's query string
+      getCurrentViewId();
       mRequestParameterMap = Collections.unmodifiableMap(new PortletRequestParameterMap(                                                                                        mPortletRequest,
                                                                                        mInternalRequestParameterMap));
     }
@@ -541,6 +639,7 @@ public class PortletExternalContextImpl extends ExternalContext
   {
     if (mRequestParameterValuesMap == null)
     {
+      getCurrentViewId();
       mRequestParameterValuesMap = Collections
                                               .unmodifiableMap(new PortletRequestParameterValuesMap(
                                                                                                     mPortletRequest,
@@ -600,6 +699,7 @@ public class PortletExternalContextImpl extends ExternalContext
   @Override
   public String getRequestPathInfo()
   {
+    mapPaths();
     return mPathInfo;
   }
 
@@ -651,6 +751,7 @@ public class PortletExternalContextImpl extends ExternalContext
   @Override
   public String getRequestServletPath()
   {
+    mapPaths();
     return mServletPath;
   }
 
@@ -991,14 +1092,12 @@ public class PortletExternalContextImpl extends ExternalContext
   // End of JSF 1.2 API
 
   /**
-   * Gets the view identifier we should use for this request.
+   * Locates the (unparsed) view identifier requested by this request.
    */
-  private String getViewId() throws BridgeDefaultViewNotSpecifiedException
+  private String getRequestedViewId() throws BridgeDefaultViewNotSpecifiedException
   {
     String viewId = mPortletRequest.getParameter(ACTION_ID_PARAMETER_NAME);
 
-    log("PortletExternalContextImpl.getViewId: found action_id = " + viewId);
-
     // If no defaultview then throw an exception
     if (viewId == null)
     {
@@ -1007,44 +1106,116 @@ public class PortletExternalContextImpl extends ExternalContext
       {
         throw new BridgeDefaultViewNotSpecifiedException();
       }
-      
+      mDefaultViewId = true;
+    }
+    return viewId;
+  }
+
+  /**
+   * Gets the view identifier we should use for this request -- parsed from the
+   * requested one the first time it is needed.
+   */
+  private String getCurrentViewId()
+  {
+    if (mViewId == null)
+    {
+      mViewId = getViewId(mRequestedViewId);
+    }
+    return mViewId;
+  }
+
+  /**
+   * Gets the view identifier we should use for this request.
+   */
+  private String getViewId(String viewId)
+  {
+    if (mDefaultViewId)
+    {
       log("PortletExternalContextImpl.getViewId: action_id not found, defaulting to: " + viewId);
     }
+    else
+    {
+      log("PortletExternalContextImpl.getViewId: found action_id = " + viewId);
+    }
 
     // Some viewId may have query string, so handle that here
     // (e.g., TaskFlow has the following viewId:
     // /adf.task-flow?_document=/WEB-INF/task-flow.xml&_id=task1
 
-    int queryStart = viewId.indexOf('?');
-    QueryString queryStr = null;
-
-    if (queryStart != -1)
+    if (viewId.indexOf('?') != -1)
     {
       // parse the query string and add the parameters to internal maps
-      // delay the creation of ParameterMap and ParameterValuesMap until
-      // they are needed/called by the client
-      queryStr = new QueryString(viewId.substring(queryStart + 1), "UTF8");
+      ParsedURL parsedViewId = new ParsedURL(viewId, "UTF8");
 
       // TODO: Constants
       mInternalRequestParameterMap = new HashMap<String, String>(5);
       mInternalRequestParameterValuesMap = new HashMap<String, String[]>(5);
 
-      Enumeration<String> list = queryStr.getParameterNames();
-      while (list.hasMoreElements())
+      for (Map.Entry<String, String> entry : parsedViewId.getParameterMap().entrySet())
       {
-        String param = list.nextElement();
-        mInternalRequestParameterMap.put(param, queryStr.getParameter(param));
-        mInternalRequestParameterValuesMap.put(param, new String[]{queryStr.getParameter(param)});
+        mInternalRequestParameterMap.put(entry.getKey(), entry.getValue());
+        mInternalRequestParameterValuesMap.put(entry.getKey(), new String[]{entry.getValue()});
       }
 
-      viewId = viewId.substring(0, queryStart);
+      viewId = parsedViewId.getPath();
       log("PortletExternalContextImpl.getViewId: special viewId: " + viewId);
     }
 
     return viewId;
   }
   
-  private void mapPathsFromViewId(String viewId, List<String> mappings)
+  /**
+   * Reverse engineers the servlet paths from the mappings so Faces thinks this
+   * was a client request -- done once, the first time anything needs them.
+   */
+  private void mapPaths()
+  {
+    if (mPathsMapped)
+    {
+      return;
+    }
+    mPathsMapped = true;
+
+    mapPathsFromViewId(getCurrentViewId(), getFacesMappings());
+
+    // JSF RI relies on a request attribute setting to properly handle
+    // suffix mapping -- but because their suffix mapping code is servlet dependent
+    // we need to set it for them
+    setFacesMapping();
+  }
+
+  @SuppressWarnings("unchecked")
+  private FacesServletMappings getFacesMappings()
+  {
+    if (!mFacesMappingsResolved)
+    {
+      mFacesMappingsResolved = true;
+
+      // the bridge sets these on the request it was handed
+      Object mappings = mOrigPortletRequest.getAttribute(FACES_MAPPING_ATTRIBUTE);
+      if (mappings instanceof FacesServletMappings)
+      {
+        mFacesMappings = (FacesServletMappings) mappings;
+      }
+      else if (mappings instanceof List && !((List<String>) mappings).isEmpty())
+      {
+        // set by someone other than the bridge
+        mFacesMappings = new FacesServletMappings((List<String>) mappings);
+      }
+    }
+    return mFacesMappings;
+  }
+
+  private ViewIdResolutionCache getViewIdCache()
+  {
+    if (mViewIdCache == null)
+    {
+      mViewIdCache = ViewIdResolutionCache.getInstance(mPortletContext);
+    }
+    return mViewIdCache;
+  }
+
+  private void mapPathsFromViewId(String viewId, FacesServletMappings mappings)
   {
     if (viewId == null || mappings == null)
     {
@@ -1054,115 +1225,104 @@ public class PortletExternalContextImpl extends ExternalContext
       mPathInfo = viewId;
       return;
     }
+
+    ViewIdResolutionCache.ServletPaths paths = getViewIdCache().getServletPaths(viewId);
+    if (paths != null)
+    {
+      mServletPath = paths.getServletPath();
+      mPathInfo = paths.getPathInfo();
+      if (mPathInfo == null)
+      {
+        // Workaround Faces RI that has Servlet dependencies if this isn't set
+        mOrigPortletRequest.setAttribute("javax.servlet.include.servlet_path", mServletPath);
+      }
+      return;
+    }
+    String requestedViewId = viewId;
     
     // The only thing that matters is we use a configured mapping
     // So just use the first one
-    String mapping = mappings.get(0);
-    if (mapping.startsWith("*"))
+    if (mappings.isExtensionMapped())
     {
       // we are using suffix mapping
-      viewId = viewId.substring(0, viewId.lastIndexOf('.'))
-               + mapping.substring(mapping.indexOf('.'));
+      viewId = viewId.substring(0, viewId.lastIndexOf('.')) + mappings.getExtension();
       
       // we are extension mapped
       mServletPath = viewId;
       mPathInfo = null;
       
       // Workaround Faces RI that has Servlet dependencies if this isn't set
-      mPortletRequest.setAttribute("javax.servlet.include.servlet_path", mServletPath);
+      mOrigPortletRequest.setAttribute("javax.servlet.include.servlet_path", mServletPath);
     }
     else
     {
       // we are using prefix mapping
-      int j = mapping.lastIndexOf("/*");
-      if (j != -1)
-      {
-        mServletPath = mapping.substring(0, j);
-      }
-      else
-      {
-        // is it valid to omit the trailing /*????
-        mServletPath = mapping;
-      }
+      mServletPath = mappings.getServletPath();
 
       // Fail safe -- even if we didn't find a servlet mapping set path info
       // as if we did as this value is all anything generally depends on
       mPathInfo = viewId;
     }
 
+    getViewIdCache().putServletPaths(requestedViewId,
+                                 new ViewIdResolutionCache.ServletPaths(mServletPath, mPathInfo));
   }
 
-  private String extensionMappingFromViewId(String viewId)
+  /*
+   * @param url the URL's path (i.e. less any query string)
+   */
+  private String getViewIdFromPath(String url)
   {
-    // first remove/ignore any querystring
-    int i = viewId.indexOf('?');
-    if (i != -1)
+    String path = url;
+    String viewId = getViewIdCache().getPathViewId(path);
+    if (viewId != null)
     {
-      viewId = viewId.substring(0, i);
+      return viewId;
     }
-     
-    int extLoc = viewId.lastIndexOf('.');
 
-    if (extLoc != -1 && extLoc > viewId.lastIndexOf('/'))
-    {
-      StringBuilder sb = new StringBuilder("*");
-      sb.append(viewId.substring(extLoc));
-      return sb.toString();
-    }
-    return null;
-  }
-
-  private String getViewIdFromPath(String url)
-  {
     // Get a string that holds the path after the Context-Path through the
     // target
 
-    // First remove the query string
-    int i = url.indexOf("?");
-    if (i != -1)
-    {
-      url = url.substring(0, i);
-    }
-
-    // Now remove up through the ContextPath
+    // Remove up through the ContextPath
     String ctxPath = getRequestContextPath();
-    i = url.indexOf(ctxPath);
+    int i = url.indexOf(ctxPath);
     if (i != -1)
     {
       url = url.substring(i + ctxPath.length());
     }
 
-    String viewId = null;
     // Okay now figure out whether this is prefix or suffixed mapped
-    if (isSuffixedMapped(url, mFacesMappings))
+    FacesServletMappings mappings = getFacesMappings();
+    if (isSuffixedMapped(url, mappings))
     {
       viewId = viewIdFromSuffixMapping(
                                        url,
-                                       mFacesMappings,
+                                       mappings,
                                        mPortletContext
                                                       .getInitParameter(ViewHandler.DEFAULT_SUFFIX_PARAM_NAME));
     }
-    else if (isPrefixedMapped(url, mFacesMappings))
+    else if (isPrefixedMapped(url, mappings))
     {
-      viewId = viewIdFromPrefixMapping(url, mFacesMappings);
+      viewId = viewIdFromPrefixMapping(url, mappings);
     }
     else
     {
       // Set to what follows the URL
       viewId = url;
     }
+
+    getViewIdCache().putPathViewId(path, viewId);
     return viewId;
   }
 
-  private boolean isSuffixedMapped(String url, List<String> mappings)
+  private boolean isSuffixedMapped(String url, FacesServletMappings mappings)
   {
-    // see if the viewId terminates with an extension
-    // if non-null value contains *.XXX where XXX is the extension
-    String ext = extensionMappingFromViewId(url);
-    return ext != null && mappings.contains(ext);
+    // see if the viewId terminates with a Faces mapped extension
+    return mappings.isExtensionMapped(url);
   }
 
-  private String viewIdFromSuffixMapping(String url, List<String> mappings, String ctxDefault)
+  private String viewIdFromSuffixMapping(String url, FacesServletMappings mappings,
+                                         String ctxDefault)
   {
     // replace extension with the DEFAULT_SUFFIX
     if (ctxDefault == null)
@@ -1186,57 +1346,24 @@ public class PortletExternalContextImpl extends ExternalContext
     return url;
   }
 
-  private boolean isPrefixedMapped(String url, List<String> mappings)
+  private boolean isPrefixedMapped(String url, FacesServletMappings mappings)
   {
-    for (int i = 0; i < mappings.size(); i++)
-    {
-      String prefix = null;
-      String mapping = mappings.get(i);
-      if (mapping.startsWith("/"))
-      {
-        int j = mapping.lastIndexOf("/*");
-        if (j != -1)
-        {
-          prefix = mapping.substring(0, j);
-        }
-      }
-      if (prefix != null && url.startsWith(prefix))
-      {
-        return true;
-      }
-    }
-    return false;
+    return mappings.getPrefixLength(url) != -1;
   }
 
-  private String viewIdFromPrefixMapping(String url, List<String> mappings)
+  private String viewIdFromPrefixMapping(String url, FacesServletMappings mappings)
   {
-    for (int i = 0; i < mappings.size(); i++)
-    {
-      String prefix = null;
-      String mapping = mappings.get(i);
-      if (mapping.startsWith("/"))
-      {
-        int j = mapping.lastIndexOf("/*");
-        if (j != -1)
-        {
-          prefix = mapping.substring(0, j);
-        }
-      }
-      if (prefix != null && url.startsWith(prefix))
-      {
-        return url.substring(prefix.length());
-      }
-    }
-    return null;
+    int i = mappings.getPrefixLength(url);
+    return i != -1 ? url.substring(i) : null;
   }
 
   private void setFacesMapping()
   {
     String mapping = null;
-    String servletPath = this.getRequestServletPath();
+    String servletPath = mServletPath;
     
     // if PathInfo == null we are suffixed mapped
-    if (this.getRequestPathInfo() == null)
+    if (mPathInfo == null)
     {
       mapping = servletPath.substring(servletPath.lastIndexOf('.'));
       
@@ -1246,103 +1373,23 @@ public class PortletExternalContextImpl extends ExternalContext
       mapping = servletPath;
     }
     
-    this.getRequestMap().put("com.sun.faces.INVOCATION_PATH", mapping);
+    mOrigPortletRequest.setAttribute("com.sun.faces.INVOCATION_PATH", mapping);
   }
   
   
-  private boolean isAbsoluteURL(String url)
+  private boolean isRedirectURL(String url)
   {
-    // Quick check for most common case
-    if (url.startsWith("http:") || url.startsWith("https:"))
+    if (url.startsWith("#"))
     {
       return true;
     }
-
-    // now deal with other possible protocols -- find the potential scheme
-    int i = url.indexOf(":");
-    if (i == -1)
-    {
-      return false;
-    }
-
-    // Now make sure that the  substring before the : is a valid scheme
-    // i.e. contains no URI reserved characters
-    String scheme = url.substring(0, i);
-
-    if (scheme.indexOf(";") != -1) return false;
-    else if (scheme.indexOf("/") != -1) return false;
-    else if (scheme.indexOf("#") != -1) return false;
-    else if (scheme.indexOf("?") != -1) return false;
-    else if (scheme.indexOf(" ") != -1) return false;
-    else return true; 
-  }
-
-  private boolean isExternalURL(String url)
-  {
-
-    if (!isAbsoluteURL(url))
-    {
-      return false;
-    }
-
-    // otherwise see if the URL contains the ContextPath
-
-    // Simple test is that the url doesn't contain
-    // the CONTEXT_PATH -- though ultimately may want to test
-    // if we are on the same server
-    String ctxPath = getRequestContextPath();
-    int i = url.indexOf(ctxPath);
-    int j = url.indexOf("?");
-    if (i != -1 && (j == -1 || i < j))
-    {
-      return false;
-    }
-    return true;
-  }
-
-  private boolean isDirectLink(String url)
-  {
-    int queryStart = url.indexOf('?');
-    QueryString queryStr = null;
-    String directLink = null;
-
-    if (queryStart != -1)
-    {
-      queryStr = new QueryString(url.substring(queryStart + 1), "UTF8");
-      directLink = queryStr.getParameter(Bridge.DIRECT_LINK);
-      return Boolean.parseBoolean(directLink);
-    }
-
-    return false;
-  }
-
-  private String removeDirectLink(String url)
-  {
-    int queryStart = url.indexOf('?');
-    QueryString queryStr = null;
-    String directLink = null;
-
-    if (queryStart != -1)
-    {
-      queryStr = new QueryString(url.substring(queryStart + 1), "UTF8");
-      directLink = queryStr.getParameter(Bridge.DIRECT_LINK);
-      if (!Boolean.parseBoolean(directLink))
-      {
-        queryStr.removeParameter(Bridge.DIRECT_LINK);
-        String query = queryStr.toString();
-        if (query != null && query.length() != 0)
-        {
-          url = url.substring(0, queryStart + 1) + query;
-        }
-      }
-    }
-
-    return url;
+    ParsedURL parsedURL = new ParsedURL(url, "UTF8");
+    return parsedURL.isExternal(getRequestContextPath()) || parsedURL.isDirectLink();
   }
 
   private String getViewIdFromRelativePath(String url)
   {
-    String currentViewId = getViewId();
+    String currentViewId = getCurrentViewId();
     int i = currentViewId.indexOf('?');
     if (i != -1)
     {
@@ -1367,18 +1414,27 @@ public class PortletExternalContextImpl extends ExternalContext
     }
     url = prefixURL + "/" + url;
 
+    String viewId = getViewIdCache().getRelativeViewId(url);
+    if (viewId != null)
+    {
+      return viewId;
+    }
+
     // Now check to see if suffix mapped because we need to do the extension
     // mapping
-    if (isSuffixedMapped(url, mFacesMappings))
+    viewId = url;
+    FacesServletMappings mappings = getFacesMappings();
+    if (isSuffixedMapped(url, mappings))
     {
-      url = viewIdFromSuffixMapping(
+      viewId = viewIdFromSuffixMapping(
                                     url,
-                                    mFacesMappings,
+                                    mappings,
                                     mPortletContext
                                                    .getInitParameter(ViewHandler.DEFAULT_SUFFIX_PARAM_NAME));
     }
 
-    return url;
+    getViewIdCache().putRelativeViewId(url, viewId);
+    return viewId;
   }
 
   private boolean isRelativePath(String url)
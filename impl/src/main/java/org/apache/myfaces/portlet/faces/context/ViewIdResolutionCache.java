@@ -0,0 +1,176 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.context;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.portlet.PortletContext;
+
+/**
+ * Remembers how the paths an application navigates to map to viewIds -- and how its
+ * viewIds map back to servlet paths.  The answers only depend on the path and on the
+ * application's Faces servlet mappings and default suffix, which don't change until the
+ * application is redeployed, and an application only has a few hundred targets.  So the
+ * cache is shared by all the requests of an application (it lives in the
+ * <code>PortletContext</code>) and never invalidated -- though to stay bounded it is
+ * emptied whenever it fills.
+ */
+final class ViewIdResolutionCache
+{
+  // PortletContext init parameter: the most paths (of each kind) the cache
+  // remembers.  Defaults to 1000; 0 disables caching.
+  public static final String CACHE_SIZE = "org.apache.myfaces.portlet.faces.VIEW_ID_CACHE_SIZE";
+
+  private static final String CACHE_ATTRIBUTE = "org.apache.myfaces.portlet.faces.context.viewIdResolutionCache";
+  private static final int DEFAULT_CACHE_SIZE = 1000;
+
+  private final int mMaxSize;
+  // URL path -> viewId
+  private final ConcurrentHashMap<String, String> mPathViewIds;
+  // normalized relative path -> viewId
+  private final ConcurrentHashMap<String, String> mRelativeViewIds;
+  // viewId -> servlet path/path info
+  private final ConcurrentHashMap<String, ServletPaths> mServletPaths;
+
+  private ViewIdResolutionCache(int maxSize)
+  {
+    mMaxSize = maxSize;
+    mPathViewIds = new ConcurrentHashMap<String, String>();
+    mRelativeViewIds = new ConcurrentHashMap<String, String>();
+    mServletPaths = new ConcurrentHashMap<String, ServletPaths>();
+  }
+
+  /**
+   * @return the application's cache
+   */
+  public static ViewIdResolutionCache getInstance(PortletContext context)
+  {
+    ViewIdResolutionCache cache = (ViewIdResolutionCache) context.getAttribute(CACHE_ATTRIBUTE);
+    if (cache != null)
+    {
+      return cache;
+    }
+
+    synchronized (context)
+    {
+      cache = (ViewIdResolutionCache) context.getAttribute(CACHE_ATTRIBUTE);
+      if (cache == null)
+      {
+        int maxSize = DEFAULT_CACHE_SIZE;
+        String setting = context.getInitParameter(CACHE_SIZE);
+        if (setting != null)
+        {
+          try
+          {
+            maxSize = Integer.parseInt(setting.trim());
+          }
+          catch (NumberFormatException e)
+          {
+            context.log("Ignoring invalid value for context init parameter " + CACHE_SIZE +
+                        ": " + setting);
+          }
+        }
+        cache = new ViewIdResolutionCache(maxSize);
+        context.setAttribute(CACHE_ATTRIBUTE, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * @return the viewId the (context path relative or absolute) URL path maps to or null if
+   *         not known
+   */
+  public String getPathViewId(String path)
+  {
+    return mPathViewIds.get(path);
+  }
+
+  public void putPathViewId(String path, String viewId)
+  {
+    put(mPathViewIds, path, viewId);
+  }
+
+  /**
+   * @return the viewId the normalized relative path maps to or null if not known
+   */
+  public String getRelativeViewId(String path)
+  {
+    return mRelativeViewIds.get(path);
+  }
+
+  public void putRelativeViewId(String path, String viewId)
+  {
+    put(mRelativeViewIds, path, viewId);
+  }
+
+  /**
+   * @return the servlet path and path info a request for the view would have had or null if
+   *         not known
+   */
+  public ServletPaths getServletPaths(String viewId)
+  {
+    return mServletPaths.get(viewId);
+  }
+
+  public void putServletPaths(String viewId, ServletPaths paths)
+  {
+    put(mServletPaths, viewId, paths);
+  }
+
+  private <V> void put(ConcurrentHashMap<String, V> cache, String key, V value)
+  {
+    if (mMaxSize <= 0 || key == null || value == null)
+    {
+      return;
+    }
+    if (cache.size() >= mMaxSize)
+    {
+      // the hot entries soon come back
+      cache.clear();
+    }
+    cache.put(key, value);
+  }
+
+  /**
+   * The servlet path and path info of a (pretend) request for a view.
+   */
+  public static final class ServletPaths
+  {
+    private final String mServletPath;
+    private final String mPathInfo;
+
+    public ServletPaths(String servletPath, String pathInfo)
+    {
+      mServletPath = servletPath;
+      mPathInfo = pathInfo;
+    }
+
+    public String getServletPath()
+    {
+      return mServletPath;
+    }
+
+    public String getPathInfo()
+    {
+      return mPathInfo;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.util;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.portlet.faces.Bridge;
+
+/**
+ * An immutable URL split into its scheme, path, query string parameters and fragment by a
+ * single pass over the string -- so the many questions asked of a URL while encoding it
+ * (is it absolute? external? a direct link? what does it target?) don't each re-scan and
+ * re-parse it.
+ * <p>
+ * Only the first value of a repeated query string parameter is kept.
+ */
+public final class ParsedURL
+{
+  private final String mURL;
+  private final String mScheme;
+  private final String mPath;
+  private final int mQueryStart;
+  private final String mFragment;
+  private final Map<String, String> mParameters;
+  private final boolean mDirectLink;
+  private final String mURLWithoutDirectLink;
+
+  /**
+   * @param url
+   *          the URL
+   * @param characterEncoding
+   *          the character encoding of the URL's (encoded) query string parameters
+   */
+  public ParsedURL(String url, String characterEncoding)
+  {
+    mURL = url;
+
+    // The scheme is whatever precedes the first ':' provided no URI reserved
+    // character comes first
+    String scheme = null;
+    int queryStart = -1;
+    int fragmentStart = -1;
+    boolean inScheme = true;
+    int length = url.length();
+    for (int i = 0; i < length; i++)
+    {
+      char c = url.charAt(i);
+      if (c == '#')
+      {
+        fragmentStart = i;
+        break;
+      }
+      if (c == '?' && queryStart == -1)
+      {
+        queryStart = i;
+        inScheme = false;
+      }
+      else if (inScheme)
+      {
+        if (c == ':')
+        {
+          scheme = url.substring(0, i);
+          inScheme = false;
+        }
+        else if (c == ';' || c == '/' || c == ' ')
+        {
+          inScheme = false;
+        }
+      }
+    }
+
+    int pathEnd = queryStart != -1 ? queryStart : fragmentStart != -1 ? fragmentStart : length;
+    mScheme = scheme;
+    mPath = url.substring(0, pathEnd);
+    mQueryStart = queryStart;
+    mFragment = fragmentStart != -1 ? url.substring(fragmentStart + 1) : null;
+
+    if (queryStart == -1)
+    {
+      mParameters = Collections.emptyMap();
+      mDirectLink = false;
+      mURLWithoutDirectLink = url;
+      return;
+    }
+
+    QueryString queryStr =
+      new QueryString(url.substring(queryStart + 1, fragmentStart != -1 ? fragmentStart : length),
+                      characterEncoding);
+    Map<String, String> parameters = new LinkedHashMap<String, String>();
+    Enumeration<String> names = queryStr.getParameterNames();
+    while (names.hasMoreElements())
+    {
+      String name = names.nextElement();
+      parameters.put(name, queryStr.getParameter(name));
+    }
+    mParameters = Collections.unmodifiableMap(parameters);
+    mDirectLink = Boolean.parseBoolean(parameters.get(Bridge.DIRECT_LINK));
+
+    if (mDirectLink || !parameters.containsKey(Bridge.DIRECT_LINK))
+    {
+      mURLWithoutDirectLink = url;
+    }
+    else
+    {
+      queryStr.removeParameter(Bridge.DIRECT_LINK);
+      String query = queryStr.toString();
+      StringBuilder sb = new StringBuilder(length);
+      sb.append(mPath);
+      if (query != null && query.length() != 0)
+      {
+        sb.append('?').append(query);
+      }
+      if (mFragment != null)
+      {
+        sb.append('#').append(mFragment);
+      }
+      mURLWithoutDirectLink = sb.toString();
+    }
+  }
+
+  /**
+   * @return the scheme (without the ':') or null if the URL isn't absolute
+   */
+  public String getScheme()
+  {
+    return mScheme;
+  }
+
+  /**
+   * @return true if the URL starts with a scheme
+   */
+  public boolean isAbsolute()
+  {
+    return mScheme != null;
+  }
+
+  /**
+   * @return true if the URL is absolute and doesn't (ahead of its query string) contain the
+   *         context path
+   */
+  public boolean isExternal(String contextPath)
+  {
+    if (mScheme == null)
+    {
+      return false;
+    }
+
+    int i = mURL.indexOf(contextPath);
+    return i == -1 || (mQueryStart != -1 && i > mQueryStart);
+  }
+
+  /**
+   * @return the URL up to its query string or fragment
+   */
+  public String getPath()
+  {
+    return mPath;
+  }
+
+  /**
+   * @return the fragment (without the '#') or null if there is none
+   */
+  public String getFragment()
+  {
+    return mFragment;
+  }
+
+  /**
+   * @return true if the URL has a query string
+   */
+  public boolean hasQueryString()
+  {
+    return mQueryStart != -1;
+  }
+
+  /**
+   * @return the (decoded) value of the query string parameter or null if there is none
+   */
+  public String getParameter(String name)
+  {
+    return mParameters.get(name);
+  }
+
+  /**
+   * @return the (decoded) query string parameter names in the order they first appear
+   */
+  public Set<String> getParameterNames()
+  {
+    return mParameters.keySet();
+  }
+
+  /**
+   * @return the (decoded) query string parameters
+   */
+  public Map<String, String> getParameterMap()
+  {
+    return mParameters;
+  }
+
+  /**
+   * @return true if the URL's {@link Bridge#DIRECT_LINK} parameter is "true"
+   */
+  public boolean isDirectLink()
+  {
+    return mDirectLink;
+  }
+
+  /**
+   * @return the URL less any {@link Bridge#DIRECT_LINK} parameter that isn't "true"
+   */
+  public String getURLWithoutDirectLink()
+  {
+    return mURLWithoutDirectLink;
+  }
+
+  @Override
+  public String toString()
+  {
+    return mURL;
+  }
+}
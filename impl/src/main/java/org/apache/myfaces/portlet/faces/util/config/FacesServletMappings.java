@@ -0,0 +1,244 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.util.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The <code>url-pattern</code>s the application's web.xml maps to the
+ * <code>FacesServlet</code>, compiled so matching a path against them allocates nothing:
+ * prefix patterns (<code>/faces/*</code>) into a character trie and extension patterns
+ * (<code>*.jsf</code>) into a table of extensions.  Built once per application and then
+ * shared (read only) by all its requests.
+ */
+public final class FacesServletMappings
+{
+  private final List<String> mMappings;
+  private final String[] mExtensions;
+  private final TrieNode mPrefixes = new TrieNode();
+
+  // how the first mapping maps a viewId back to a servlet path
+  private final boolean mExtensionMapped;
+  private final String mServletPath;
+  private final String mExtension;
+
+  /**
+   * @param mappings
+   *          the Faces servlet's url-patterns in the order they appear in the web.xml -- at
+   *          least one
+   */
+  public FacesServletMappings(List<String> mappings)
+  {
+    if (mappings == null || mappings.isEmpty())
+    {
+      throw new IllegalArgumentException("No Faces servlet mappings");
+    }
+    mMappings = Collections.unmodifiableList(new ArrayList<String>(mappings));
+
+    List<String> extensions = new ArrayList<String>(2);
+    for (int i = 0; i < mMappings.size(); i++)
+    {
+      String mapping = mMappings.get(i);
+      if (mapping.startsWith("*."))
+      {
+        extensions.add(mapping.substring(1));
+      }
+      else if (mapping.startsWith("/"))
+      {
+        int j = mapping.lastIndexOf("/*");
+        if (j != -1)
+        {
+          mPrefixes.add(mapping, j, i);
+        }
+      }
+    }
+    mExtensions = extensions.toArray(new String[extensions.size()]);
+
+    String mapping = mMappings.get(0);
+    mExtensionMapped = mapping.startsWith("*");
+    if (mExtensionMapped)
+    {
+      int dot = mapping.indexOf('.');
+      mServletPath = null;
+      mExtension = dot != -1 ? mapping.substring(dot) : "";
+    }
+    else
+    {
+      int j = mapping.lastIndexOf("/*");
+      // is it valid to omit the trailing /*????
+      mServletPath = j != -1 ? mapping.substring(0, j) : mapping;
+      mExtension = null;
+    }
+  }
+
+  /**
+   * @return the url-patterns as they appear in the web.xml
+   */
+  public List<String> getMappings()
+  {
+    return mMappings;
+  }
+
+  /**
+   * @return true if requests are mapped back (from viewIds) by extension
+   * @see #getExtension
+   */
+  public boolean isExtensionMapped()
+  {
+    return mExtensionMapped;
+  }
+
+  /**
+   * @return the extension (e.g. <code>.jsf</code>) viewIds are mapped back to or null if
+   *         they're prefix mapped
+   */
+  public String getExtension()
+  {
+    return mExtension;
+  }
+
+  /**
+   * @return the servlet path (e.g. <code>/faces</code>) viewIds are mapped back to or null
+   *         if they're extension mapped
+   */
+  public String getServletPath()
+  {
+    return mServletPath;
+  }
+
+  /**
+   * @return true if the path (ignoring any query string) ends in an extension mapped to
+   *         Faces
+   */
+  public boolean isExtensionMapped(String path)
+  {
+    int end = path.indexOf('?');
+    if (end == -1)
+    {
+      end = path.length();
+    }
+    int extLoc = path.lastIndexOf('.', end - 1);
+    if (extLoc == -1 || extLoc < path.lastIndexOf('/', end - 1))
+    {
+      return false;
+    }
+
+    int length = end - extLoc;
+    for (int i = 0; i < mExtensions.length; i++)
+    {
+      String extension = mExtensions[i];
+      if (extension.length() == length && path.regionMatches(extLoc, extension, 0, length))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the length of the (first in web.xml order) servlet path the path starts with or
+   *         -1 if it isn't prefix mapped
+   */
+  public int getPrefixLength(String path)
+  {
+    TrieNode node = mPrefixes;
+    int best = node.mMappingIndex;
+    int bestLength = best != Integer.MAX_VALUE ? 0 : -1;
+    for (int i = 0; i < path.length(); i++)
+    {
+      node = node.get(path.charAt(i));
+      if (node == null)
+      {
+        break;
+      }
+      if (node.mMappingIndex < best)
+      {
+        best = node.mMappingIndex;
+        bestLength = i + 1;
+      }
+    }
+    return bestLength;
+  }
+
+  @Override
+  public String toString()
+  {
+    return mMappings.toString();
+  }
+
+  /*
+   * A node of the prefix trie.  Children are kept in arrays sorted by their character
+   * -- mappings only have a few prefixes and a path is matched character by character.
+   */
+  private static final class TrieNode
+  {
+    private static final char[] NO_CHARS = new char[0];
+    private static final TrieNode[] NO_NODES = new TrieNode[0];
+
+    private char[] mChars = NO_CHARS;
+    private TrieNode[] mChildren = NO_NODES;
+    // the web.xml position of the mapping whose prefix ends here
+    private int mMappingIndex = Integer.MAX_VALUE;
+
+    public TrieNode get(char c)
+    {
+      int i = Arrays.binarySearch(mChars, c);
+      return i >= 0 ? mChildren[i] : null;
+    }
+
+    /*
+     * Adds the first length characters of the mapping.
+     */
+    public void add(String mapping, int length, int mappingIndex)
+    {
+      TrieNode node = this;
+      for (int i = 0; i < length; i++)
+      {
+        node = node.getOrAdd(mapping.charAt(i));
+      }
+      node.mMappingIndex = Math.min(node.mMappingIndex, mappingIndex);
+    }
+
+    private TrieNode getOrAdd(char c)
+    {
+      int i = Arrays.binarySearch(mChars, c);
+      if (i >= 0)
+      {
+        return mChildren[i];
+      }
+
+      i = -i - 1;
+      char[] chars = new char[mChars.length + 1];
+      TrieNode[] children = new TrieNode[mChildren.length + 1];
+      System.arraycopy(mChars, 0, chars, 0, i);
+      System.arraycopy(mChildren, 0, children, 0, i);
+      chars[i] = c;
+      children[i] = new TrieNode();
+      System.arraycopy(mChars, i, chars, i + 1, mChars.length - i);
+      System.arraycopy(mChildren, i, children, i + 1, mChildren.length - i);
+      mChars = chars;
+      mChildren = children;
+      return children[i];
+    }
+  }
+}
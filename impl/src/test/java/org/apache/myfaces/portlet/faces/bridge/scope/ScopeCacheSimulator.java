@@ -0,0 +1,250 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.myfaces.portlet.faces.bridge.scope;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a recorded trace of scope accesses against each {@link ConcurrentRequestScopeMap.EvictionPolicy}
+ * and reports the hit rate of the renders -- to choose a policy and a
+ * {@link javax.portlet.faces.Bridge#MAX_MANAGED_REQUEST_SCOPES} for a portal's traffic.
+ * <p>
+ * A trace is the portlet context log written with the
+ * <code>org.apache.myfaces.portlet.faces.REQUEST_SCOPE_TRACE</code> init parameter set to
+ * <code>EVENTS</code>: each <code>ACTION_PHASE</code> line stores a scope, each
+ * <code>RENDER_PHASE</code> line looks one up and all other lines are ignored.  (Tracing at
+ * <code>CONTENTS</code> looks each traced scope up, which itself changes a frequency aware
+ * policy's choices.)  Lines of the form <code>PUT &lt;key&gt;</code> and
+ * <code>GET &lt;key&gt;</code> may be used for traces recorded some other way.
+ * <p>
+ * An offline tool -- it isn't part of the bridge's runtime.
+ * <p>
+ * Usage: <code>ScopeCacheSimulator &lt;trace file&gt; &lt;capacity&gt;[,&lt;capacity&gt;...]
+ * [&lt;concurrency&gt;]</code>
+ */
+public class ScopeCacheSimulator
+{
+  private static final String TRACE_PREFIX = "Request scope ";
+
+  private final List<Access> mTrace;
+
+  public ScopeCacheSimulator(List<Access> trace)
+  {
+    mTrace = trace;
+  }
+
+  public static void main(String[] args)
+    throws IOException
+  {
+    if (args.length < 2)
+    {
+      System.err.println("Usage: ScopeCacheSimulator <trace file> <capacity>[,<capacity>...] [<concurrency>]");
+      System.exit(1);
+    }
+
+    List<Access> trace = readTrace(args[0]);
+    int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    ScopeCacheSimulator simulator = new ScopeCacheSimulator(trace);
+
+    System.out.println(trace.size() + " accesses");
+    System.out.println("capacity\tpolicy\thits\tmisses\thit rate");
+    for (String capacity : args[1].split(","))
+    {
+      int maxCapacity = Integer.parseInt(capacity.trim());
+      for (ConcurrentRequestScopeMap.EvictionPolicy policy : ConcurrentRequestScopeMap.EvictionPolicy.values())
+      {
+        Result result = simulator.run(policy, maxCapacity, concurrency);
+        System.out.println(maxCapacity + "\t" + policy + "\t" + result.getHits() + "\t" +
+                           result.getMisses() + "\t" +
+                           String.format("%.2f%%", result.getHitRate() * 100));
+      }
+    }
+  }
+
+  /**
+   * Replays the trace against an empty map.
+   */
+  public Result run(ConcurrentRequestScopeMap.EvictionPolicy policy, int maxCapacity,
+                    int concurrency)
+  {
+    ConcurrentRequestScopeMap<Object> scopes =
+      new ConcurrentRequestScopeMap<Object>(maxCapacity, concurrency, null);
+    scopes.setEvictionPolicy(policy);
+
+    Object scope = new Object();
+    Result result = new Result();
+    for (Access access : mTrace)
+    {
+      if (access.isPut())
+      {
+        scopes.put(access.getKey(), scope);
+      }
+      else if (scopes.get(access.getKey()) != null)
+      {
+        result.mHits++;
+      }
+      else
+      {
+        result.mMisses++;
+      }
+    }
+    return result;
+  }
+
+  public static List<Access> readTrace(String fileName)
+    throws IOException
+  {
+    List<Access> trace = new ArrayList<Access>();
+    BufferedReader reader = new BufferedReader(new FileReader(fileName));
+    try
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        Access access = parse(line);
+        if (access != null)
+        {
+          trace.add(access);
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+    return trace;
+  }
+
+  /*
+   * @return the access the line records or null if it records none
+   */
+  private static Access parse(String line)
+  {
+    boolean put;
+    String key;
+    int start = line.indexOf(TRACE_PREFIX);
+    if (start >= 0)
+    {
+      start += TRACE_PREFIX.length();
+      int colon = line.indexOf(": ", start);
+      if (colon < 0)
+      {
+        return null;
+      }
+      String event = line.substring(start, colon);
+      if (event.equals("ACTION_PHASE"))
+      {
+        put = true;
+      }
+      else if (event.equals("RENDER_PHASE"))
+      {
+        put = false;
+      }
+      else
+      {
+        return null;
+      }
+      key = line.substring(colon + 2);
+    }
+    else if (line.startsWith("PUT "))
+    {
+      put = true;
+      key = line.substring(4);
+    }
+    else if (line.startsWith("GET "))
+    {
+      put = false;
+      key = line.substring(4);
+    }
+    else
+    {
+      return null;
+    }
+
+    int end = key.indexOf(' ');
+    if (end >= 0)
+    {
+      key = key.substring(0, end);
+    }
+    key = key.trim();
+    if (key.length() == 0)
+    {
+      return null;
+    }
+
+    // portletName:sessionId:id as ScopeKey prints it -- but accept bare ids too
+    int first = key.indexOf(':');
+    int last = key.lastIndexOf(':');
+    if (first < 0 || first == last)
+    {
+      return new Access(put, new ScopeKey("", "", key));
+    }
+    return new Access(put, new ScopeKey(key.substring(0, first), key.substring(first + 1, last),
+                                        key.substring(last + 1)));
+  }
+
+  public static final class Access
+  {
+    private final boolean mPut;
+    private final ScopeKey mKey;
+
+    public Access(boolean put, ScopeKey key)
+    {
+      mPut = put;
+      mKey = key;
+    }
+
+    public boolean isPut()
+    {
+      return mPut;
+    }
+
+    public ScopeKey getKey()
+    {
+      return mKey;
+    }
+  }
+
+  public static final class Result
+  {
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    public long getHits()
+    {
+      return mHits;
+    }
+
+    public long getMisses()
+    {
+      return mMisses;
+    }
+
+    public double getHitRate()
+    {
+      long total = mHits + mMisses;
+      return total > 0 ? (double) mHits / total : 0;
+    }
+  }
+}